@@ -0,0 +1,68 @@
+package nachos.ag;
+
+import nachos.machine.Config;
+import nachos.machine.Lib;
+import nachos.threads.KThread;
+
+/**
+ * An autograder that forks and joins many kernel threads and counts the
+ * context switches it takes. Threads are forked <tt>JoinBenchmark.batch</tt>
+ * at a time (so the TCB thread limit is not hit), each yields
+ * <tt>JoinBenchmark.yields</tt> times, and the main thread joins them in
+ * order. A joiner that blocks shows up as about one switch per thread on top
+ * of the children's own; one that polls adds a switch for every pass through
+ * the ready queue:
+ *
+ * <pre>
+ * java nachos.machine.Machine -- nachos.ag.JoinBenchmark
+ * </pre>
+ */
+public class JoinBenchmark extends AutoGrader {
+	void run() {
+		int numThreads = Config.getInteger("JoinBenchmark.threads", 10000);
+		int batch = Config.getInteger("JoinBenchmark.batch", 100);
+		final int yields = Config.getInteger("JoinBenchmark.yields", 10);
+
+		Runnable child = new Runnable() {
+			public void run() {
+				for (int i = 0; i < yields; i++)
+					KThread.yield();
+			}
+		};
+
+		long startTime = System.nanoTime();
+		long startTicks = getTime();
+		switches = 0;
+
+		KThread[] threads = new KThread[batch];
+		for (int forked = 0; forked < numThreads; forked += batch) {
+			int n = Math.min(batch, numThreads - forked);
+
+			for (int i = 0; i < n; i++) {
+				threads[i] = new KThread(child).setName("joinee");
+				threads[i].fork();
+			}
+			for (int i = 0; i < n; i++)
+				threads[i].join();
+		}
+
+		long elapsed = Math.max(1, System.nanoTime() - startTime);
+		Lib.assertTrue(numThreads > 0);
+
+		System.out.println("JoinBenchmark: " + numThreads + " threads, "
+				+ yields + " yields each, " + switches + " context switches ("
+				+ (switches / numThreads) + " per thread), "
+				+ (getTime() - startTicks) + " ticks, " + (elapsed / 1000000)
+				+ " ms");
+
+		done();
+	}
+
+	public void runningThread(KThread thread) {
+		super.runningThread(thread);
+
+		switches++;
+	}
+
+	private long switches;
+}
@@ -0,0 +1,61 @@
+package nachos.ag;
+
+import nachos.machine.Config;
+import nachos.security.Privilege;
+
+/**
+ * An autograder that measures how fast the simulated processor runs user
+ * code. The clock starts when the kernel first runs the processor and stops
+ * when the machine halts; the report gives user instructions and simulated
+ * ticks per second of host time, along with the processor options in effect,
+ * so runs with and without <tt>Processor.fastPath</tt> (or with another
+ * <tt>Processor.engine</tt>) can be compared on the same program:
+ *
+ * <pre>
+ * java nachos.machine.Machine -x matmult_max.coff -- nachos.ag.ProcessorBenchmark
+ * </pre>
+ */
+public class ProcessorBenchmark extends AutoGrader {
+	void init() {
+		privilege.addExitNotificationHandler(new Runnable() {
+			public void run() {
+				report();
+			}
+		});
+	}
+
+	public void runProcessor(Privilege privilege) {
+		super.runProcessor(privilege);
+
+		if (startTime == 0) {
+			startTime = System.nanoTime();
+			startTicks = privilege.stats.userTicks;
+			startTotalTicks = privilege.stats.totalTicks;
+		}
+	}
+
+	private void report() {
+		if (startTime == 0)
+			return;
+
+		long elapsed = Math.max(1, System.nanoTime() - startTime);
+		long instructions = privilege.stats.userTicks - startTicks;
+		long ticks = privilege.stats.totalTicks - startTotalTicks;
+
+		System.out.println("ProcessorBenchmark: engine="
+				+ Config.getString("Processor.engine", "interpreter")
+				+ ", fastPath=" + Config.getBoolean("Processor.fastPath", true)
+				+ ", decodeCache="
+				+ Config.getBoolean("Processor.decodeCache", true));
+		System.out.println("ProcessorBenchmark: " + instructions
+				+ " instructions in " + (elapsed / 1000000) + " ms, "
+				+ (instructions * 1000000000L / elapsed) + " instructions/s, "
+				+ (ticks * 1000000000L / elapsed) + " ticks/s");
+	}
+
+	private long startTime = 0;
+
+	private long startTicks;
+
+	private long startTotalTicks;
+}
@@ -4,9 +4,7 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -52,7 +50,9 @@ public final class Interrupt {
 		privilege.interrupt = new InterruptPrivilege();
 
 		enabled = false;
-		pending = new TreeSet<PendingInterrupt>();
+		pending = new PendingInterrupt[16];
+		numPending = 0;
+		nextDueTime = Long.MAX_VALUE;
 	}
 
 	/**
@@ -123,12 +123,82 @@ public final class Interrupt {
 		Lib.assertTrue(when > 0);
 
 		long time = privilege.stats.totalTicks + when;
-		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
+		PendingInterrupt toOccur = allocate(time, type, handler);
 
-		Lib.debug(dbgInt, "Scheduling the " + type
-				+ " interrupt handler at time = " + time);
+		if (Lib.test(dbgInt))
+			System.out.println("Scheduling the " + type
+					+ " interrupt handler at time = " + time);
+
+		if (numPending == pending.length)
+			pending = Arrays.copyOf(pending, numPending * 2);
+
+		// sift up from the new leaf
+		int i = numPending++;
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (pending[parent].compareTo(toOccur) <= 0)
+				break;
+			pending[i] = pending[parent];
+			i = parent;
+		}
+		pending[i] = toOccur;
+
+		nextDueTime = pending[0].time;
+	}
+
+	/**
+	 * Remove the earliest pending interrupt from the heap and return it.
+	 */
+	private PendingInterrupt removeFirst() {
+		PendingInterrupt first = pending[0];
+		PendingInterrupt last = pending[--numPending];
+		pending[numPending] = null;
+
+		if (numPending > 0) {
+			// sift the last leaf down from the root
+			int i = 0;
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= numPending)
+					break;
+				if (child + 1 < numPending
+						&& pending[child + 1].compareTo(pending[child]) < 0)
+					child++;
+				if (last.compareTo(pending[child]) <= 0)
+					break;
+				pending[i] = pending[child];
+				i = child;
+			}
+			pending[i] = last;
+		}
+
+		nextDueTime = (numPending > 0) ? pending[0].time : Long.MAX_VALUE;
+
+		return first;
+	}
+
+	/**
+	 * Take a pending interrupt from the free list, or make a new one.
+	 */
+	private PendingInterrupt allocate(long time, String type, Runnable handler) {
+		PendingInterrupt toOccur = freeList;
+		if (toOccur == null)
+			return new PendingInterrupt(time, type, handler);
+
+		freeList = toOccur.nextFree;
+		toOccur.nextFree = null;
+		toOccur.time = time;
+		toOccur.type = type;
+		toOccur.handler = handler;
+		toOccur.id = numPendingInterruptsCreated++;
+		return toOccur;
+	}
 
-		pending.add(toOccur);
+	private void free(PendingInterrupt toOccur) {
+		toOccur.type = null;
+		toOccur.handler = null;
+		toOccur.nextFree = freeList;
+		freeList = toOccur;
 	}
 
 	private void tick(boolean inKernelMode) {
@@ -145,6 +215,49 @@ public final class Interrupt {
 
 		if (Lib.test(dbgInt))
 			System.out.println("== Tick " + stats.totalTicks + " ==");
+		else if (stats.totalTicks < nextDueTime)
+			return;
+
+		enabled = false;
+		checkIfDue();
+		enabled = true;
+	}
+
+	/**
+	 * Return the number of user ticks that can pass before the next pending
+	 * interrupt falls due, for an execution engine that runs several
+	 * instructions between calls to <tt>tickUser()</tt>.
+	 * 
+	 * @return the number of user ticks, at least 1.
+	 */
+	long userTicksUntilDue() {
+		if (nextDueTime == Long.MAX_VALUE)
+			return Long.MAX_VALUE;
+
+		long ticks = (nextDueTime - privilege.stats.totalTicks)
+				/ Stats.UserTick;
+		return Math.max(ticks, 1);
+	}
+
+	/**
+	 * Charge <i>instructions</i> user ticks at once. The caller has made sure,
+	 * with <tt>userTicksUntilDue()</tt>, that no interrupt falls due before
+	 * the last of them, so this is the same as calling <tt>tick(false)</tt>
+	 * once per instruction.
+	 * 
+	 * @param instructions the number of user instructions executed.
+	 */
+	void tickUser(int instructions) {
+		if (instructions == 0)
+			return;
+
+		Stats stats = privilege.stats;
+
+		stats.userTicks += instructions * Stats.UserTick;
+		stats.totalTicks += instructions * Stats.UserTick;
+
+		if (stats.totalTicks < nextDueTime && !Lib.test(dbgInt))
+			return;
 
 		enabled = false;
 		checkIfDue();
@@ -159,27 +272,26 @@ public final class Interrupt {
 		if (Lib.test(dbgInt))
 			print();
 
-		if (pending.isEmpty())
-			return;
-
-		if (((PendingInterrupt) pending.first()).time > time)
+		if (nextDueTime > time)
 			return;
 
 		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 
-		while (!pending.isEmpty()
-				&& ((PendingInterrupt) pending.first()).time <= time) {
-			PendingInterrupt next = (PendingInterrupt) pending.first();
-			pending.remove(next);
+		while (nextDueTime <= time) {
+			PendingInterrupt next = removeFirst();
 
 			Lib.assertTrue(next.time <= time);
 
 			if (privilege.processor != null)
 				privilege.processor.flushPipe();
 
-			Lib.debug(dbgInt, "  " + next.type);
+			if (Lib.test(dbgInt))
+				System.out.println("  " + next.type);
 
-			next.handler.run();
+			// the handler may schedule again, so recycle the event first
+			Runnable handler = next.handler;
+			free(next);
+			handler.run();
 		}
 
 		Lib.debug(dbgInt, "  (end of list)");
@@ -190,8 +302,11 @@ public final class Interrupt {
 				+ ", interrupts " + (enabled ? "on" : "off"));
 		System.out.println("Pending interrupts:");
 
-		for (Iterator i = pending.iterator(); i.hasNext();) {
-			PendingInterrupt toOccur = (PendingInterrupt) i.next();
+		PendingInterrupt[] sorted = Arrays.copyOf(pending, numPending);
+		Arrays.sort(sorted);
+
+		for (int i = 0; i < sorted.length; i++) {
+			PendingInterrupt toOccur = sorted[i];
 			System.out.println("  " + toOccur.type + ", scheduled at "
 					+ toOccur.time);
 		}
@@ -230,6 +345,9 @@ public final class Interrupt {
 		Runnable handler;
 
 		private long id;
+
+		/** The next event on the free list. */
+		PendingInterrupt nextFree;
 	}
 
 	private long numPendingInterruptsCreated = 0;
@@ -238,7 +356,22 @@ public final class Interrupt {
 
 	private boolean enabled;
 
-	private TreeSet<PendingInterrupt> pending;
+	/**
+	 * The pending interrupts, kept as a binary heap ordered by time and then
+	 * by creation order, in <tt>pending[0..numPending-1]</tt>.
+	 */
+	private PendingInterrupt[] pending;
+
+	private int numPending;
+
+	/**
+	 * The time of the earliest pending interrupt, or
+	 * <tt>Long.MAX_VALUE</tt>, so most ticks need one comparison.
+	 */
+	private long nextDueTime;
+
+	/** Handled interrupts, kept for reuse by <tt>schedule()</tt>. */
+	private PendingInterrupt freeList = null;
 
 	private static final char dbgInt = 'i';
 
@@ -45,6 +45,15 @@ public final class Processor {
 
 		mainMemory = new byte[pageSize * numPhysPages];
 
+		fastPath = Config.getBoolean("Processor.fastPath", true)
+				&& !Lib.test(dbgProcessor) && !Lib.test(dbgDisassemble)
+				&& !Lib.test(dbgFullDisassemble);
+
+		if (Config.getBoolean("Processor.decodeCache", true))
+			decodedPages = new Decoded[numPhysPages][];
+		else
+			decodedPages = null;
+
 		if (usingTLB) {
 			translations = new TranslationEntry[tlbSize];
 			for (int i = 0; i < tlbSize; i++)
@@ -91,6 +100,12 @@ public final class Processor {
 
 		Instruction inst = new Instruction();
 
+		// the block engine does not print anything, so debugging runs interpret
+		if (Config.getString("Processor.engine", "interpreter").equals("block")
+				&& !Lib.test(dbgProcessor) && !Lib.test(dbgDisassemble)
+				&& !Lib.test(dbgFullDisassemble) && !Lib.test('i'))
+			runBlocks(inst);
+
 		while (true) {
 			try {
 				inst.run();
@@ -103,6 +118,95 @@ public final class Processor {
 		}
 	}
 
+	/**
+	 * Execute instructions a basic block at a time. Never returns.
+	 * 
+	 * <p>
+	 * A block is a run of instructions in one physical page that ends after
+	 * a branch and its delay slot, a syscall, or at the end of the page. It is
+	 * decoded once and kept by physical address; each block remembers the one
+	 * that followed it last time, so a loop goes from block to block without
+	 * a lookup. Ticks are charged once per block, and a block is cut short
+	 * where the next interrupt falls due, so interrupts happen after exactly
+	 * the same instruction as in the interpreter.
+	 */
+	private void runBlocks(Instruction inst) {
+		Block block = null;
+
+		while (true) {
+			inst.executed = 0;
+			try {
+				block = inst.runBlock(block);
+			}
+			catch (MipsException e) {
+				block = null;
+				Machine.interrupt().tickUser(inst.executed);
+				e.handle();
+				privilege.interrupt.tick(false);
+				continue;
+			}
+
+			Machine.interrupt().tickUser(inst.executed);
+		}
+	}
+
+	/**
+	 * Return the block starting at physical address <i>paddr</i>, decoding
+	 * it if this is the first time it runs.
+	 */
+	private Block findBlock(int paddr) {
+		int ppn = paddr / pageSize;
+		if (blockPages == null) {
+			blockPages = new Block[numPhysPages][];
+			blockGenerations = new int[numPhysPages];
+		}
+
+		Block[] page = blockPages[ppn];
+		if (page == null) {
+			page = new Block[pageSize / 4];
+			blockPages[ppn] = page;
+		}
+
+		int first = (paddr % pageSize) >> 2;
+		if (page[first] != null)
+			return page[first];
+
+		Decoded[] scratch = new Decoded[pageSize / 4 - first];
+		int length = 0;
+		for (int word = first; word < pageSize / 4; word++) {
+			Decoded decoded = new Decoded(Lib.bytesToInt(mainMemory,
+					ppn * pageSize + word * 4, 4));
+			scratch[length++] = decoded;
+
+			if (Lib.test(Mips.BRANCH, decoded.flags)) {
+				// take the delay slot along
+				if (word + 1 < pageSize / 4)
+					scratch[length++] = new Decoded(Lib.bytesToInt(mainMemory,
+							ppn * pageSize + (word + 1) * 4, 4));
+				break;
+			}
+			if (decoded.operation == Mips.SYSCALL
+					|| decoded.operation == Mips.INVALID
+					|| decoded.operation == Mips.UNIMPL)
+				break;
+		}
+
+		Block block = new Block(ppn, blockGenerations[ppn], new Decoded[length]);
+		System.arraycopy(scratch, 0, block.instructions, 0, length);
+		page[first] = block;
+		return block;
+	}
+
+	// throw away the blocks decoded from page ppn, and any links to them
+	private void invalidateBlocks(int ppn) {
+		if (blockPages != null && blockPages[ppn] != null) {
+			blockPages[ppn] = null;
+			blockGenerations[ppn]++;
+			if (ppn == currentBlockPage)
+				abortBlock = true;
+		}
+	}
+
 	/**
 	 * Read and return the contents of the specified CPU register.
 	 * 
@@ -236,6 +340,23 @@ public final class Processor {
 		return mainMemory;
 	}
 
+	/**
+	 * Tell the processor that something other than a user store has written
+	 * to physical page <i>ppn</i> (through <tt>getMemory()</tt>), so that any
+	 * instructions it has decoded from that page are decoded again. Anything
+	 * that writes into main memory directly must call this.
+	 * 
+	 * @param ppn the physical page that was written.
+	 */
+	public void invalidateDecodedPage(int ppn) {
+		Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+		if (decodedPages != null)
+			decodedPages[ppn] = null;
+
+		invalidateBlocks(ppn);
+	}
+
 	/**
 	 * Concatenate a page number and an offset into an address.
 	 * 
@@ -357,6 +478,78 @@ public final class Processor {
 		return paddr;
 	}
 
+	/**
+	 * Same as <tt>translate()</tt>, without the debugging output. Used when
+	 * no processor debug flags are set. The TLB slot that last translated an
+	 * instruction fetch, and the one that last translated a load or store,
+	 * are tried before searching the TLB, since both streams mostly stay on
+	 * one page.
+	 * 
+	 * @param fetching <tt>true</tt> if this is an instruction fetch.
+	 */
+	private int translateFast(int vaddr, int size, boolean writing,
+			boolean fetching) throws MipsException {
+		if ((vaddr & (size - 1)) != 0)
+			throw new MipsException(exceptionAddressError, vaddr);
+
+		int vpn = pageFromAddress(vaddr);
+		TranslationEntry entry;
+
+		if (!usingTLB) {
+			if (translations == null || vpn >= translations.length
+					|| translations[vpn] == null || !translations[vpn].valid) {
+				privilege.stats.numPageFaults++;
+				throw new MipsException(exceptionPageFault, vaddr);
+			}
+
+			entry = translations[vpn];
+		}
+		else {
+			int slot = fetching ? lastFetchSlot : lastDataSlot;
+			entry = translations[slot];
+
+			if (!entry.valid || entry.vpn != vpn) {
+				entry = null;
+				for (int i = 0; i < tlbSize; i++) {
+					if (translations[i].valid && translations[i].vpn == vpn) {
+						entry = translations[i];
+						slot = i;
+						break;
+					}
+				}
+				if (entry == null) {
+					privilege.stats.numTLBMisses++;
+					throw new MipsException(exceptionTLBMiss, vaddr);
+				}
+
+				if (fetching)
+					lastFetchSlot = slot;
+				else
+					lastDataSlot = slot;
+			}
+		}
+
+		if (entry.readOnly && writing)
+			throw new MipsException(exceptionReadOnly, vaddr);
+
+		int ppn = entry.ppn;
+		if (ppn < 0 || ppn >= numPhysPages)
+			throw new MipsException(exceptionBusError, vaddr);
+
+		entry.used = true;
+		if (writing)
+			entry.dirty = true;
+
+		return (ppn * pageSize) + offsetFromAddress(vaddr);
+	}
+
+	// the little-endian word at paddr, which is aligned
+	private int wordAt(int paddr) {
+		return (mainMemory[paddr] & 0xFF) | ((mainMemory[paddr + 1] & 0xFF) << 8)
+				| ((mainMemory[paddr + 2] & 0xFF) << 16)
+				| (mainMemory[paddr + 3] << 24);
+	}
+
 	/**
 	 * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
 	 * and return the result.
@@ -367,6 +560,16 @@ public final class Processor {
 	 * @exception MipsException if a translation error occurred.
 	 */
 	private int readMem(int vaddr, int size) throws MipsException {
+		if (fastPath) {
+			int paddr = translateFast(vaddr, size, false, false);
+			if (size == 4)
+				return wordAt(paddr);
+			else if (size == 2)
+				return (short) ((mainMemory[paddr] & 0xFF) | (mainMemory[paddr + 1] << 8));
+			else
+				return mainMemory[paddr];
+		}
+
 		if (Lib.test(dbgProcessor))
 			System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 					+ ", size=" + size);
@@ -393,14 +596,38 @@ public final class Processor {
 	 * @exception MipsException if a translation error occurred.
 	 */
 	private void writeMem(int vaddr, int size, int value) throws MipsException {
-		if (Lib.test(dbgProcessor))
-			System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
-					+ ", size=" + size + ", value=0x"
-					+ Lib.toHexString(value, size * 2));
+		int paddr;
+
+		if (fastPath) {
+			paddr = translateFast(vaddr, size, true, false);
+			mainMemory[paddr] = (byte) value;
+			if (size > 1) {
+				mainMemory[paddr + 1] = (byte) (value >> 8);
+				if (size == 4) {
+					mainMemory[paddr + 2] = (byte) (value >> 16);
+					mainMemory[paddr + 3] = (byte) (value >> 24);
+				}
+			}
+		}
+		else {
+			if (Lib.test(dbgProcessor))
+				System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
+						+ ", size=" + size + ", value=0x"
+						+ Lib.toHexString(value, size * 2));
 
-		Lib.assertTrue(size == 1 || size == 2 || size == 4);
+			Lib.assertTrue(size == 1 || size == 2 || size == 4);
+
+			paddr = translate(vaddr, size, true);
+			Lib.bytesFromInt(mainMemory, paddr, size, value);
+		}
 
-		Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size, value);
+		// self-modifying code: drop the decoded copy of the word stored to
+		if (decodedPages != null) {
+			Decoded[] page = decodedPages[paddr / pageSize];
+			if (page != null)
+				page[(paddr % pageSize) >> 2] = null;
+		}
+		invalidateBlocks(paddr / pageSize);
 	}
 
 	/**
@@ -565,6 +792,33 @@ public final class Processor {
 	/** Number of physical pages in memory. */
 	private int numPhysPages;
 
+	/**
+	 * Decoded instructions by physical page and word, <tt>null</tt> if the
+	 * cache is turned off by <tt>Processor.decodeCache</tt>.
+	 */
+	private Decoded[][] decodedPages;
+
+	/**
+	 * Decoded basic blocks by physical page and first word, created the first
+	 * time the block engine runs. A page's generation goes up each time its
+	 * blocks are thrown away, which tells stale links apart.
+	 */
+	private Block[][] blockPages;
+
+	private int[] blockGenerations;
+
+	/** True if memory accesses skip the debugging checks. */
+	private final boolean fastPath;
+
+	/** The TLB slots that last translated a fetch and a load or store. */
+	private int lastFetchSlot = 0, lastDataSlot = 0;
+
+	/** The page the running block came from, or -1. */
+	private int currentBlockPage = -1;
+
+	/** Set when the running block's page is written to. */
+	private boolean abortBlock;
+
 	/** Main memory for user programs. */
 	private byte[] mainMemory;
 
@@ -631,6 +885,60 @@ public final class Processor {
 			writeBack();
 		}
 
+		/**
+		 * Run <i>block</i>'s successor, which starts at the current PC, for
+		 * at most as many instructions as there are ticks before the next
+		 * interrupt. <tt>executed</tt> counts the instructions completed, so
+		 * the caller can charge them even if one of them throws.
+		 * 
+		 * @return the block that was run.
+		 */
+		public Block runBlock(Block previous) throws MipsException {
+			int pc = registers[regPC];
+			int paddr = fastPath ? translateFast(pc, 4, false, true)
+					: translate(pc, 4, false);
+
+			Block block;
+			if (previous != null && previous.nextPaddr == paddr
+					&& previous.next != null && previous.next.isCurrent())
+				block = previous.next;
+			else {
+				block = findBlock(paddr);
+				if (previous != null) {
+					previous.next = block;
+					previous.nextPaddr = paddr;
+				}
+			}
+
+			long due = Machine.interrupt().userTicksUntilDue();
+			int count = (int) Math.min(block.instructions.length, due);
+
+			currentBlockPage = block.ppn;
+			abortBlock = false;
+
+			for (int i = 0; i < count; i++) {
+				// a taken branch leaves the block after its delay slot
+				if (registers[regPC] != pc)
+					break;
+
+				decoded = block.instructions[i];
+				value = decoded.value;
+				decode();
+				execute();
+				writeBack();
+				executed++;
+
+				// the block stored into its own page
+				if (abortBlock)
+					break;
+
+				pc += 4;
+			}
+
+			currentBlockPage = -1;
+			return block;
+		}
+
 		private boolean test(int flag) {
 			return Lib.test(flag, flags);
 		}
@@ -641,78 +949,68 @@ public final class Processor {
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 						+ "\t");
 
-			value = readMem(registers[regPC], 4);
-		}
+			if (decodedPages == null) {
+				if (fastPath)
+					value = wordAt(translateFast(registers[regPC], 4, false, true));
+				else
+					value = readMem(registers[regPC], 4);
+				decoded = null;
+				return;
+			}
 
-		private void decode() {
-			op = Lib.extract(value, 26, 6);
-			rs = Lib.extract(value, 21, 5);
-			rt = Lib.extract(value, 16, 5);
-			rd = Lib.extract(value, 11, 5);
-			sh = Lib.extract(value, 6, 5);
-			func = Lib.extract(value, 0, 6);
-			target = Lib.extract(value, 0, 26);
-			imm = Lib.extend(value, 0, 16);
+			int paddr = fastPath ? translateFast(registers[regPC], 4, false, true)
+					: translate(registers[regPC], 4, false);
+			Decoded[] page = decodedPages[paddr / pageSize];
+			if (page == null) {
+				page = new Decoded[pageSize / 4];
+				decodedPages[paddr / pageSize] = page;
+			}
 
-			Mips info;
-			switch (op) {
-			case 0:
-				info = Mips.specialtable[func];
-				break;
-			case 1:
-				info = Mips.regimmtable[rt];
-				break;
-			default:
-				info = Mips.optable[op];
-				break;
+			int index = (paddr % pageSize) >> 2;
+			decoded = page[index];
+			if (decoded == null) {
+				decoded = new Decoded(Lib.bytesToInt(mainMemory, paddr, 4));
+				page[index] = decoded;
 			}
+			value = decoded.value;
+		}
 
-			operation = info.operation;
-			name = info.name;
-			format = info.format;
-			flags = info.flags;
+		private void decode() {
+			if (decoded == null)
+				decoded = new Decoded(value);
+
+			op = decoded.op;
+			rs = decoded.rs;
+			rt = decoded.rt;
+			rd = decoded.rd;
+			sh = decoded.sh;
+			func = decoded.func;
+			target = decoded.target;
+			imm = decoded.imm;
+
+			operation = decoded.operation;
+			name = decoded.name;
+			format = decoded.format;
+			flags = decoded.flags;
+			size = decoded.size;
+			dstReg = decoded.dstReg;
 
 			mask = 0xFFFFFFFF;
 			branch = true;
 
-			// get memory access size
-			if (test(Mips.SIZEB))
-				size = 1;
-			else if (test(Mips.SIZEH))
-				size = 2;
-			else if (test(Mips.SIZEW))
-				size = 4;
-			else
-				size = 0;
-
 			// get nextPC
 			nextPC = registers[regNextPC] + 4;
 
-			// get dstReg
-			if (test(Mips.DSTRA))
-				dstReg = regRA;
-			else if (format == Mips.IFMT)
-				dstReg = rt;
-			else if (format == Mips.RFMT)
-				dstReg = rd;
-			else
-				dstReg = -1;
-
 			// get jtarget
 			if (format == Mips.RFMT)
 				jtarget = registers[rs];
 			else if (format == Mips.IFMT)
-				jtarget = registers[regNextPC] + (imm << 2);
+				jtarget = registers[regNextPC] + (decoded.branchOffset << 2);
 			else if (format == Mips.JFMT)
 				jtarget = (registers[regNextPC] & 0xF0000000) | (target << 2);
 			else
 				jtarget = -1;
 
-			// get imm
-			if (test(Mips.UNSIGNED)) {
-				imm &= 0xFFFF;
-			}
-
 			// get addr
 			addr = registers[rs] + imm;
 
@@ -1067,7 +1365,12 @@ public final class Processor {
 				System.out.print("\n");
 		}
 
+		// instructions completed by the current block
+		int executed;
+
 		// state used to execute a single instruction
+		Decoded decoded;
+
 		int value, op, rs, rt, rd, sh, func, target, imm;
 
 		int operation, format, flags;
@@ -1085,6 +1388,106 @@ public final class Processor {
 		boolean branch;
 	}
 
+	/**
+	 * An instruction word with everything <tt>decode()</tt> can work out
+	 * without looking at the registers. Cached by physical address in
+	 * <tt>decodedPages</tt>, so each instruction of a loop is only taken apart
+	 * once.
+	 */
+	private static class Decoded {
+		Decoded(int value) {
+			this.value = value;
+
+			op = Lib.extract(value, 26, 6);
+			rs = Lib.extract(value, 21, 5);
+			rt = Lib.extract(value, 16, 5);
+			rd = Lib.extract(value, 11, 5);
+			sh = Lib.extract(value, 6, 5);
+			func = Lib.extract(value, 0, 6);
+			target = Lib.extract(value, 0, 26);
+			branchOffset = Lib.extend(value, 0, 16);
+
+			Mips info;
+			switch (op) {
+			case 0:
+				info = Mips.specialtable[func];
+				break;
+			case 1:
+				info = Mips.regimmtable[rt];
+				break;
+			default:
+				info = Mips.optable[op];
+				break;
+			}
+
+			operation = info.operation;
+			name = info.name;
+			format = info.format;
+			flags = info.flags;
+
+			// get memory access size
+			if (Lib.test(Mips.SIZEB, flags))
+				size = 1;
+			else if (Lib.test(Mips.SIZEH, flags))
+				size = 2;
+			else if (Lib.test(Mips.SIZEW, flags))
+				size = 4;
+			else
+				size = 0;
+
+			// get dstReg
+			if (Lib.test(Mips.DSTRA, flags))
+				dstReg = regRA;
+			else if (format == Mips.IFMT)
+				dstReg = rt;
+			else if (format == Mips.RFMT)
+				dstReg = rd;
+			else
+				dstReg = -1;
+
+			// get imm; branches keep the sign-extended one
+			if (Lib.test(Mips.UNSIGNED, flags))
+				imm = branchOffset & 0xFFFF;
+			else
+				imm = branchOffset;
+		}
+
+		final int value, op, rs, rt, rd, sh, func, target;
+
+		final int imm, branchOffset;
+
+		final int operation, format, flags;
+
+		final String name;
+
+		final int size, dstReg;
+	}
+
+	/**
+	 * A decoded basic block, see <tt>runBlocks()</tt>.
+	 */
+	private class Block {
+		Block(int ppn, int generation, Decoded[] instructions) {
+			this.ppn = ppn;
+			this.generation = generation;
+			this.instructions = instructions;
+		}
+
+		// false once the page this block came from has been written
+		boolean isCurrent() {
+			return blockGenerations[ppn] == generation;
+		}
+
+		final int ppn, generation;
+
+		final Decoded[] instructions;
+
+		// the block that ran after this one last time, and where it starts
+		Block next;
+
+		int nextPaddr;
+	}
+
 	private static class Mips {
 		Mips() {
 		}
@@ -8,6 +8,8 @@ import nachos.threads.*;
 import java.io.File;
 import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * This class implements a file system that redirects all requests to the host
@@ -64,6 +66,56 @@ public class StubFileSystem implements FileSystem {
 		private File f;
 	}
 
+	/**
+	 * Map the first <i>length</i> bytes of a file into memory, creating the
+	 * file or growing it as needed. The mapping stays valid after the file is
+	 * closed. Unlike <tt>open()</tt>, accesses through the returned buffer are
+	 * not delayed.
+	 * 
+	 * @param name the name of the file to map.
+	 * @param length the number of bytes to map.
+	 * @return the mapped region, or <tt>null</tt> if the file could not be
+	 * mapped.
+	 */
+	public MappedByteBuffer map(String name, int length) {
+		if (!checkName(name) || length < 0)
+			return null;
+
+		FileMapper fm = new FileMapper(new File(directory, name), length);
+		privilege.doPrivileged(fm);
+		return fm.buffer;
+	}
+
+	private class FileMapper implements Runnable {
+		public FileMapper(File f, int length) {
+			this.f = f;
+			this.length = length;
+		}
+
+		public void run() {
+			try {
+				RandomAccessFile raf = new RandomAccessFile(f, "rw");
+				try {
+					if (raf.length() < length)
+						raf.setLength(length);
+					buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+							0, length);
+				}
+				finally {
+					raf.close();
+				}
+			}
+			catch (IOException e) {
+			}
+		}
+
+		public MappedByteBuffer buffer = null;
+
+		private File f;
+
+		private int length;
+	}
+
 	private void delay() {
 		long time = Machine.timer().getTime();
 		int amount = 1000;
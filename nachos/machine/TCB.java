@@ -21,6 +21,11 @@ import java.security.PrivilegedAction;
  * <p>
  * Do not use the <i>synchronized</i> keyword <b>anywhere</b> in your code. It's
  * against the rules, <i>and</i> it can easily deadlock nachos.
+ * 
+ * <p>
+ * <tt>TCB.maxThreads</tt> raises the limit on started TCBs, and
+ * <tt>TCB.stackSize</tt> (in bytes, 0 for the JVM default) makes room for
+ * many thousands of them.
  */
 public final class TCB {
 	/**
@@ -39,6 +44,10 @@ public final class TCB {
 	public static void givePrivilege(Privilege privilege) {
 		TCB.privilege = privilege;
 		privilege.tcb = new TCBPrivilege();
+
+		threadLimit = Config.getInteger("TCB.maxThreads", maxThreads);
+		stackSize = Config.getInteger("TCB.stackSize", 0);
+		Lib.assertTrue(threadLimit > 0 && stackSize >= 0);
 	}
 
 	/**
@@ -68,7 +77,7 @@ public final class TCB {
 		 * Make sure there aren't too many running TCBs already. This limitation
 		 * exists in an effort to prevent wild thread usage.
 		 */
-		Lib.assertTrue(runningThreads.size() < maxThreads);
+		Lib.assertTrue(runningThreads.size() < threadLimit);
 
 		isFirstTCB = (currentTCB == null);
 
@@ -102,7 +111,7 @@ public final class TCB {
 
 			privilege.doPrivileged(new Runnable() {
 				public void run() {
-					javaThread = new Thread(tcbTarget);
+					javaThread = new Thread(null, tcbTarget, "TCB", stackSize);
 				}
 			});
 
@@ -346,6 +355,12 @@ public final class TCB {
 	 */
 	public static final int maxThreads = 250;
 
+	/** The limit actually enforced, <tt>TCB.maxThreads</tt> or the default. */
+	private static int threadLimit = maxThreads;
+
+	/** The stack size requested for new JVM threads, 0 for the default. */
+	private static long stackSize = 0;
+
 	/**
 	 * A reference to the currently running TCB. It is initialized to
 	 * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
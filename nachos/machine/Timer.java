@@ -51,6 +51,18 @@ public final class Timer {
 		this.handler = handler;
 	}
 
+	/**
+	 * Schedule a one-shot timer interrupt <i>delay</i> clock ticks from now,
+	 * in addition to the periodic one. The handler is called once, with
+	 * interrupts disabled.
+	 *
+	 * @param delay the number of clock ticks until the interrupt.
+	 * @param handler the interrupt handler.
+	 */
+	public void scheduleOneShot(long delay, Runnable handler) {
+		privilege.interrupt.schedule(delay, "timer one-shot", handler);
+	}
+
 	/**
 	 * Get the current time.
 	 * 
@@ -1,33 +1,82 @@
 package nachos.threads;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 
 import nachos.machine.*;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Sleeping threads are kept in a binary min-heap ordered by wake time (ties in
+ * the order they went to sleep), so a timer interrupt only looks at the
+ * threads that are due and pops each in O(log n), however many others are
+ * asleep.
+ *
+ * <p>
+ * With <tt>Alarm.tickless</tt> set, the alarm also asks the timer for a
+ * one-shot interrupt at the earliest wake time, so a sleeper is made ready at
+ * its deadline instead of at the next periodic interrupt. The periodic
+ * interrupt still drives preemption.
  */
-public class Alarm 
+public class Alarm
 {
-	private ArrayList <Long> blockedTimeList;
-	private ArrayList <KThread> blockedThreadList;
-	
+	/** The sleeping threads, a min-heap on (wakeTime, seq). */
+	private Sleeper[] heap;
+	private int numSleeping;
+	private HashMap<KThread, Sleeper> sleepers;
+	private long nextSeq;
+
+	private boolean tickless;
+	private Runnable oneShotInterrupt;
+	/** Time of the earliest one-shot interrupt still pending. */
+	private long oneShotTime;
+
+	private static class Sleeper
+	{
+		Sleeper(long wakeTime, long seq, KThread thread)
+		{
+			this.wakeTime = wakeTime;
+			this.seq = seq;
+			this.thread = thread;
+		}
+
+		long wakeTime;
+		long seq;
+		KThread thread;
+		int index;
+	}
+
 	/**
 	 * Allocate a new Alarm. Set the machine's timer interrupt handler to this
 	 * alarm's callback.
-	 * 
+	 *
 	 * <p>
 	 * <b>Note</b>: Nachos will not function correctly with more than one alarm.
 	 */
-	public Alarm() 
+	public Alarm()
 	{
-		blockedTimeList   = new ArrayList<Long>();
-		blockedThreadList = new ArrayList<KThread>();
+		heap = new Sleeper[16];
+		numSleeping = 0;
+		sleepers = new HashMap<KThread, Sleeper>();
+		nextSeq = 0;
+
+		tickless = Config.getBoolean("Alarm.tickless", false);
+		oneShotTime = Long.MAX_VALUE;
+		oneShotInterrupt = new Runnable()
+		{
+			public void run()
+			{
+				oneShotInterrupt();
+			}
+		};
+
 		Machine.timer().setInterruptHandler(
-				new Runnable() 
+				new Runnable()
 				{
-					public void run() 
+					public void run()
 					{
 						timerInterrupt();
 					}
@@ -38,61 +87,188 @@ public class Alarm
 	 * The timer interrupt handler. This is called by the machine's timer
 	 * periodically (approximately every 500 clock ticks). Causes the current
 	 * thread to yield, forcing a context switch if there is another thread that
-	 * should be run.
+	 * should be run, unless the scheduler says to let it keep running.
 	 */
-	public void timerInterrupt() 
+	public void timerInterrupt()
 	{
+		wakeExpired();
 
-		for(int i = 0; i<blockedTimeList.size(); i++)
+		if (ThreadedKernel.scheduler.shouldPreempt())
 		{
-			Long time = blockedTimeList.get(i);
-			if (time < getTime())
-			{
-				Lib.debug(KThread.dbgThread, "Releasing a thread");
-				blockedTimeList.remove(i);
-
-				//Wake the blocked thread
-				blockedThreadList.get(i).wake();
-				blockedThreadList.remove(i);
-			}
+			KThread.yield();
 		}
-		
-		KThread.yield();
 	}
 
 	/**
 	 * Put the current thread to sleep for at least <i>x</i> ticks, waking it up
 	 * in the timer interrupt handler. The thread must be woken up (placed in
 	 * the scheduler ready set) during the first timer interrupt where
-	 * 
+	 *
 	 * <p>
 	 * <blockquote> (current time) >= (WaitUntil called time)+(x) </blockquote>
-	 * 
+	 *
 	 * @param x the minimum number of clock ticks to wait.
-	 * 
+	 *
 	 * @see nachos.machine.Timer#getTime()
 	 */
 	public void waitUntil(long x)
 	{
-		//Add current thread to blocked list
-		blockedTimeList.add(getTime() + x);
-		blockedThreadList.add(KThread.currentThread());
-		
-		//block it!
-		KThread.block();
-	}     
-		     
+		//a timer interrupt must not wake us before we are blocked
+		boolean intStatus = Machine.interrupt().disable();
+
+		Sleeper sleeper = new Sleeper(getTime() + x, nextSeq++, KThread.currentThread());
+		insert(sleeper);
+		sleepers.put(sleeper.thread, sleeper);
+
+		if (tickless)
+		{
+			scheduleOneShot();
+		}
+
+		KThread.sleep();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Wake a thread sleeping in <tt>waitUntil()</tt> now, before its time is
+	 * up.
+	 *
+	 * @param thread the sleeping thread.
+	 * @return <tt>true</tt> if the thread was asleep in this alarm.
+	 */
+	public boolean cancel(KThread thread)
+	{
+		boolean intStatus = Machine.interrupt().disable();
+
+		Sleeper sleeper = sleepers.remove(thread);
+		if (sleeper != null)
+		{
+			remove(sleeper.index);
+			thread.ready();
+		}
+
+		Machine.interrupt().restore(intStatus);
+		return sleeper != null;
+	}
+
 	public static long getTime()
 	{
-		return Machine.timer().getTime();	
+		return Machine.timer().getTime();
+	}
+
+	private void oneShotInterrupt()
+	{
+		if (oneShotTime <= getTime())
+		{
+			oneShotTime = Long.MAX_VALUE;
+		}
+
+		wakeExpired();
+		scheduleOneShot();
+	}
+
+	//ask for a one-shot interrupt at the earliest wake time, unless one is already due by then
+	private void scheduleOneShot()
+	{
+		if (numSleeping == 0 || heap[0].wakeTime >= oneShotTime)
+		{
+			return;
+		}
+
+		oneShotTime = heap[0].wakeTime;
+		Machine.timer().scheduleOneShot(Math.max(1, oneShotTime - getTime()), oneShotInterrupt);
+	}
+
+	private void wakeExpired()
+	{
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		long now = getTime();
+		while (numSleeping > 0 && heap[0].wakeTime <= now)
+		{
+			Sleeper sleeper = heap[0];
+			remove(0);
+			sleepers.remove(sleeper.thread);
+
+			Lib.debug(KThread.dbgThread, "Releasing a thread");
+			sleeper.thread.ready();
+		}
+	}
+
+	private static boolean before(Sleeper a, Sleeper b)
+	{
+		return a.wakeTime < b.wakeTime || (a.wakeTime == b.wakeTime && a.seq < b.seq);
+	}
+
+	private void insert(Sleeper sleeper)
+	{
+		if (numSleeping == heap.length)
+		{
+			heap = Arrays.copyOf(heap, numSleeping * 2);
+		}
+
+		place(sleeper, numSleeping++);
+		siftUp(sleeper.index);
+	}
+
+	private void remove(int i)
+	{
+		Sleeper last = heap[--numSleeping];
+		heap[numSleeping] = null;
+		if (i == numSleeping)
+		{
+			return;
+		}
+
+		place(last, i);
+		siftDown(i);
+		siftUp(last.index);
+	}
+
+	private void siftUp(int i)
+	{
+		Sleeper sleeper = heap[i];
+		while (i > 0)
+		{
+			int parent = (i - 1) / 2;
+			if (!before(sleeper, heap[parent]))
+			{
+				break;
+			}
+			place(heap[parent], i);
+			i = parent;
+		}
+		place(sleeper, i);
+	}
+
+	private void siftDown(int i)
+	{
+		Sleeper sleeper = heap[i];
+		while (true)
+		{
+			int child = 2 * i + 1;
+			if (child >= numSleeping)
+			{
+				break;
+			}
+			if (child + 1 < numSleeping && before(heap[child + 1], heap[child]))
+			{
+				child++;
+			}
+			if (!before(heap[child], sleeper))
+			{
+				break;
+			}
+			place(heap[child], i);
+			i = child;
+		}
+		place(sleeper, i);
+	}
+
+	private void place(Sleeper sleeper, int i)
+	{
+		heap[i] = sleeper;
+		sleeper.index = i;
 	}
-	
-	//TODO
-	//A thread calls waitUntil to suspend its own execution until time has advanced to at least now + x.
-	//	There is no requirement that threads start running
-	//	immediately after waking up; just put them on the ready queue in the timer interrupt handler after
-	//	they have waited for at least the right amount of time. Do not fork any additional threads to
-	//	implement waitUntil(); you need only modify waitUntil() and the timer interrupt
-	//	handler. waitUntil is not limited to one thread; any number of threads may call it and be
-	//	suspended at any one time.
 }
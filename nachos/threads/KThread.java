@@ -58,6 +58,7 @@ public class KThread
 	private String name = "(unnamed thread)";
 	private Runnable target;
 	private TCB tcb;
+	private ThreadQueue joinQueue = null;	//threads waiting in join(), owned by this thread
 
 	private int id = numCreated++;  	//Unique identifier for this thread. Used to deterministically compare threads.
 	private static int numCreated = 0;	// Number of times the KThread constructor was called
@@ -268,6 +269,16 @@ public class KThread
 
 		currentThread.status = Status.STATUS_FINISHED;
 
+		if (currentThread.joinQueue != null)
+		{
+			KThread joiner;
+			while ((joiner = currentThread.joinQueue.nextThread()) != null)
+			{
+				joiner.ready();
+			}
+			currentThread.joinQueue = null;
+		}
+
 		sleep();
 	}
 
@@ -373,17 +384,15 @@ public class KThread
 		
 		boolean intStatus = Machine.interrupt().disable();
 
-		ThreadQueue waitQueue = ThreadedKernel.scheduler.newThreadQueue(true);
-		waitQueue.acquire(this);
-
-		while (this.status != Status.STATUS_FINISHED)		//this thread must finish
+		if (status != Status.STATUS_FINISHED)
 		{
-			if (currentThread != this)
-			{                    
-				waitQueue.waitForAccess(this);				//preempt current thread
-				waitQueue.waitForAccess(currentThread);
-				yield();
+			if (joinQueue == null)
+			{
+				joinQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+				joinQueue.acquire(this);			//joiners donate priority to this thread
 			}
+			joinQueue.waitForAccess(currentThread);
+			sleep();									//woken once, by finish()
 		}
 
 		Machine.interrupt().restore(intStatus);
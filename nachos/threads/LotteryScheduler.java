@@ -2,79 +2,90 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Random;
-import java.util.Iterator;
-import java.util.LinkedList;
 
 /**
  * A scheduler that chooses threads using a lottery.
- * 
+ *
  * <p>
  * A lottery scheduler associates a number of tickets with each thread. When a
  * thread needs to be dequeued, a random lottery is held, among all the tickets
  * of all the threads waiting to be dequeued. The thread that holds the winning
  * ticket is chosen.
- * 
+ *
  * <p>
  * Note that a lottery scheduler must be able to handle a lot of tickets
  * (sometimes billions), so it is not acceptable to maintain state for every
  * ticket.
- * 
+ *
  * <p>
  * A lottery scheduler must partially solve the priority inversion problem; in
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking the
  * maximum).
+ *
+ * <p>
+ * Each queue keeps its waiters' ticket counts (as <tt>long</tt>s, so sums of
+ * large counts cannot overflow) in a Fenwick tree indexed by slot, and reuses
+ * the slots of threads that leave. Drawing a winner, adding or removing a
+ * waiter, and changing a waiter's tickets are all O(log n). A change in a
+ * thread's tickets is passed on as a difference to the holder of the queue it
+ * waits on, and from there along the chain of holders.
  */
-public class LotteryScheduler extends PriorityScheduler 
+public class LotteryScheduler extends PriorityScheduler
 {
 	public static final int MINIMUM_PRIORITY = 1;
 	public static final int DEFAULT_PRIORITY = MINIMUM_PRIORITY;
 	public static final int MAXIMUM_PRIORITY = Integer.MAX_VALUE;
 
+	/** Draws winning tickets; seeded from the machine for repeatable runs. */
+	private Random random;
+
+	/** Marks the threads already updated by one ticket transfer. */
+	private long transferCount = 0;
+
 	/**
 	 * Allocate a new lottery scheduler.
 	 */
-	public LotteryScheduler() 
+	public LotteryScheduler()
 	{
-
-
+		random = new Random(Lib.random(Integer.MAX_VALUE));
 	}
 
 	/**
 	 * Allocate a new lottery thread queue.
-	 * 
+	 *
 	 * @param transferPriority <tt>true</tt> if this queue should transfer
 	 * tickets from waiting threads to the owning thread.
 	 * @return a new lottery thread queue.
 	 */
 	@Override
-	public ThreadQueue newThreadQueue(boolean transferPriority) 
+	public ThreadQueue newThreadQueue(boolean transferPriority)
 	{
 		return new LotteryQueue(transferPriority);
 	}
-        
-        @Override
-	public void setPriority(KThread thread, int priority) 
+
+	@Override
+	public void setPriority(KThread thread, int priority)
 	{
-		setPriority( thread,  priority,  MINIMUM_PRIORITY,  MAXIMUM_PRIORITY) ;
+		setPriority(thread, priority, MINIMUM_PRIORITY, MAXIMUM_PRIORITY);
 	}
 
-        @Override
-	public boolean increasePriority() 
+	@Override
+	public boolean increasePriority()
 	{
-		return increasePriority(MAXIMUM_PRIORITY) ;
+		return increasePriority(MAXIMUM_PRIORITY);
 	}
 
-        @Override
-	public boolean decreasePriority() 
+	@Override
+	public boolean decreasePriority()
 	{
-		return decreasePriority(MINIMUM_PRIORITY) ;
+		return decreasePriority(MINIMUM_PRIORITY);
 	}
-        
+
 	@Override
-	protected ThreadState getThreadState(KThread thread) 
+	protected ThreadState getThreadState(KThread thread)
 	{
 		if (thread.schedulingState == null)
 		{
@@ -84,227 +95,278 @@ public class LotteryScheduler extends PriorityScheduler
 		return (ThreadState) thread.schedulingState;
 	}
 
+	//uniform in [0, bound)
+	private long draw(long bound)
+	{
+		long bits, value;
+		do
+		{
+			bits = random.nextLong() >>> 1;
+			value = bits % bound;
+		}
+		while (bits - value + (bound - 1) < 0);
+
+		return value;
+	}
+
 	protected class LotteryQueue extends ThreadQueue
 	{
-		ArrayList<Integer> maxList;
-		Random rand;
 		public boolean transferPriority;
-		private ArrayList<ThreadState> queue;
-		protected ThreadState activeThreadState;
 
-		public LotteryQueue (boolean transferPriority) 
+		/** The thread that has access, if this queue transfers tickets. */
+		protected ThreadState holder = null;
+
+		private ThreadState[] slots = new ThreadState[8];
+		private long[] tickets = new long[8];	//by slot
+		private long[] tree = new long[9];		//Fenwick tree over tickets, 1-based
+		private int[] freeSlots = new int[8];
+		private int numFreeSlots = 0;
+		private int numSlotsUsed = 0;			//slots at or above this were never used
+		private int size = 0;
+		private long totalTickets = 0;
+
+		public LotteryQueue(boolean transferPriority)
 		{
 			this.transferPriority = transferPriority;
-			queue = new ArrayList<ThreadState>();
-			rand = new Random();
-			maxList = new ArrayList<Integer>();
 		}
 
-		          @Override
-            public KThread nextThread()
-            {
-                boolean debug = false;
-                Lib.assertTrue(Machine.interrupt().disabled());
-                ThreadState winner = null;
-
-                if (queue.isEmpty())
-                {
-                    return null;
-                }
-
-                if (debug)  //ONLY FOR DEBUG! checking priority #'s correct
-                {
-                    for (ThreadState t : queue)
-                    {
-                        if (winner == null)
-                        {
-                            winner = t;
-                        }
-                        else
-                        {
-                            if (t.getEffectivePriority() > winner.getEffectivePriority())
-                            {
-                                winner = t;
-                            }
-                        }
-                    }
-                    
-                }
-                else
-                {
-                    /**
-                     * Based on the number tickets owned per thread, give each
-                     * thread that many tickets then randomly choose a ticket
-                     * and find the winner!
-                     *
-                     * Example) Threads have this many tickets: 1 1 3 4 1 1 2 1.
-                     * Create an Array of [1 2 5 9 10 11 13] 2. Randomly choose
-                     * winning ticket #9 -> 5th thread wins! 3. Randomly choose
-                     * winning ticket #0 -> 1st thread wins! Note: Ticket #13
-                     * can never be chosen!
-                     */
-                    maxList.clear();
-                    int counter = 0;
-                    for (ThreadState t : queue)
-                    {
-                        counter += t.getEffectivePriority();
-                        maxList.add(counter);
-                    }
-
-                    int winningTicket = rand.nextInt(counter);
-                    for (int i = 0; i < maxList.size(); i++)
-                    {
-                        if (maxList.get(i) > winningTicket)
-                        {
-                            winner = queue.get(i);
-                            break;
-                        }
-                    }
-                }
-
-                // =========================================
-                queue.remove(winner);
-                setActiveThread(winner);
-                winner.listOfQueues.remove(this);
-                
-                return winner.getThread();
-            }
-                
+		@Override
+		public KThread nextThread()
+		{
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState winner = null;
+			if (size > 0)
+			{
+				winner = slots[findSlot(draw(totalTickets))];
+			}
+
+			if (transferPriority)
+			{
+				//the old holder gives up everything its waiters donated
+				if (holder != null)
+				{
+					holder.transferTickets(-totalTickets);
+				}
+				if (winner != null)
+				{
+					remove(winner);
+				}
+				holder = winner;
+				if (holder != null)
+				{
+					holder.transferTickets(totalTickets);
+				}
+			}
+			else if (winner != null)
+			{
+				remove(winner);
+			}
+
+			return (winner == null) ? null : winner.getThread();
+		}
+
 		@Override
 		public void waitForAccess(KThread thread)
 		{
 			Lib.assertTrue(Machine.interrupt().disabled());
 			getThreadState(thread).waitForAccess(this);
 		}
+
 		@Override
 		public void acquire(KThread thread)
 		{
 			Lib.assertTrue(Machine.interrupt().disabled());
 			getThreadState(thread).acquire(this);
 		}
+
 		@Override
-		public void print() 
+		public void print()
 		{
 			Lib.assertTrue(Machine.interrupt().disabled());
 			System.out.println("  Start");
-                                System.out.print("     Head: " + activeThreadState);
-			for (Iterator<ThreadState> i = queue.iterator(); i.hasNext();)
+			System.out.print("     Head: " + holder);
+			for (int i = 0; i < numSlotsUsed; i++)
 			{
-				System.out.print("        "+i.next());
+				if (slots[i] != null)
+				{
+					System.out.print("        " + slots[i]);
+				}
 			}
 			System.out.println("  End");
+		}
 
+		private void insert(ThreadState state)
+		{
+			int slot;
+			if (numFreeSlots > 0)
+			{
+				slot = freeSlots[--numFreeSlots];
+			}
+			else
+			{
+				if (numSlotsUsed == slots.length)
+				{
+					grow();
+				}
+				slot = numSlotsUsed++;
+			}
+
+			slots[slot] = state;
+			state.slot = slot;
+			size++;
+			adjust(slot, state.tickets);
 		}
 
-		protected void setActiveThread(ThreadState thread)
+		private void remove(ThreadState state)
 		{
-			this.activeThreadState = thread;
+			int slot = state.slot;
+			adjust(slot, -tickets[slot]);
+			slots[slot] = null;
+			size--;
+			freeSlots[numFreeSlots++] = slot;
+
+			state.waitQueue = null;
+			state.slot = -1;
 		}
 
-		protected ThreadState getActiveThread() 
+		private void adjust(int slot, long delta)
 		{
-			return activeThreadState;
+			tickets[slot] += delta;
+			totalTickets += delta;
+			for (int i = slot + 1; i < tree.length; i += i & -i)
+			{
+				tree[i] += delta;
+			}
 		}
 
-		
+		//the slot holding ticket number <i>ticket</i>, counting tickets in slot order
+		private int findSlot(long ticket)
+		{
+			int pos = 0;
+			for (int step = Integer.highestOneBit(tree.length - 1); step > 0; step >>= 1)
+			{
+				if (pos + step < tree.length && tree[pos + step] <= ticket)
+				{
+					pos += step;
+					ticket -= tree[pos];
+				}
+			}
+			return pos;
+		}
+
+		private void grow()
+		{
+			int capacity = slots.length * 2;
+			slots = Arrays.copyOf(slots, capacity);
+			tickets = Arrays.copyOf(tickets, capacity);
+			freeSlots = Arrays.copyOf(freeSlots, capacity);
 
+			tree = new long[capacity + 1];
+			for (int i = 1; i <= capacity; i++)
+			{
+				tree[i] += tickets[i - 1];
+				int parent = i + (i & -i);
+				if (parent <= capacity)
+				{
+					tree[parent] += tree[i];
+				}
+			}
+		}
 	}
 
-	private static LinkedList<ThreadState> deadlockKiller;
 	protected class ThreadState extends PriorityScheduler.ThreadState
 	{
-		private ArrayList<LotteryQueue> listOfQueues ;
-		public ThreadState(KThread thread) 
+		/*
+		 * The superclass constructor calls setPriority(), before these fields
+		 * would be initialized, so they are left at their defaults.
+		 */
+
+		/** Own tickets plus everything donated to this thread. */
+		private long tickets;
+
+		/** The queue this thread is waiting on, if any, and its slot there. */
+		private LotteryQueue waitQueue;
+		private int slot;
+
+		private long lastTransfer;
+
+		public ThreadState(KThread thread)
 		{
 			super(thread);
 		}
 
-                @Override
+		/**
+		 * Return the tickets this thread holds, including donations, capped
+		 * at <tt>Integer.MAX_VALUE</tt>.
+		 */
+		@Override
+		public int getEffectivePriority()
+		{
+			return (int) Math.min(tickets, Integer.MAX_VALUE);
+		}
+
+		@Override
 		public void setPriority(int priority)
 		{
-                    if (null == listOfQueues)
-                    {
-                        listOfQueues = new ArrayList<LotteryQueue> ();
-                    }
-			if (this.priority == priority)
-			{
-				return;
-			}
-                        
-                        if (effectivePriority <= 0)
-                        {
-                            effectivePriority = priority;
-                        }
-			
-			startTransfers(priority - effectivePriority, this);
+			long delta = (long) priority - this.priority;
 			this.priority = priority;
+			transferTickets(delta);
 		}
-		
-		private void transferTickets(int tickets, ThreadState recipient)
+
+		/**
+		 * Add <i>delta</i> tickets to this thread, and to every thread that
+		 * holds a queue it is (transitively) waiting on. A thread is updated
+		 * at most once, so a cycle of waiters cannot loop forever.
+		 */
+		private void transferTickets(long delta)
 		{
-			deadlockKiller.add(recipient);
+			long transfer = ++transferCount;
 
-			for(LotteryQueue queue: recipient.listOfQueues)
+			ThreadState state = this;
+			while (delta != 0 && state != null && state.lastTransfer != transfer)
 			{
-				if (queue.transferPriority && !queue.queue.isEmpty())
+				state.lastTransfer = transfer;
+				state.tickets += delta;
+
+				LotteryQueue queue = state.waitQueue;
+				if (queue == null)
 				{
-					ThreadState activeThread = queue.activeThreadState;
-					if(recipient != activeThread && !deadlockKiller.contains(activeThread))
-					{
-						transferTickets(tickets, activeThread);
-					}
+					break;
 				}
+				queue.adjust(state.slot, delta);
+
+				state = queue.transferPriority ? queue.holder : null;
 			}
+		}
 
-			//should give the delta of ticket changes (negative or positive)
-			recipient.effectivePriority = (recipient.effectivePriority + tickets);
+		public void waitForAccess(LotteryQueue waitQueue)
+		{
+			Lib.assertTrue(this.waitQueue == null, "thread is already waiting");
+
+			waitingTime = Machine.timer().getTime();
+			this.waitQueue = waitQueue;
+			waitQueue.insert(this);
+
+			if (waitQueue.transferPriority && waitQueue.holder != null)
+			{
+				waitQueue.holder.transferTickets(tickets);
+			}
 		}
-		
-		 private void startTransfers(int ticketsToGive, ThreadState masterThread)
-		 {
-                     if (ticketsToGive == 0)
-                     {
-                         return;
-                     }
-			 if (deadlockKiller == null)
-			 {
-				 deadlockKiller = new LinkedList<ThreadState>();
-			 }
-			 transferTickets(ticketsToGive, masterThread);
-			 deadlockKiller.clear();
-		 }
-
-            public void waitForAccess(LotteryQueue waitQueue)
-            {
-                waitingTime = Machine.timer().getTime();
-
-                if ( waitQueue.transferPriority)
-                {
-                    {
-                        //TODO not sure if this is okay or not? It's because there's no 'head' in a loterry queue
-                        if (waitQueue.getActiveThread() == null)
-                        {
-                          //  acquire(waitQueue);
-                        }
-                        else
-                        {
-                            startTransfers(effectivePriority, waitQueue.getActiveThread());
-                        }
-                    }
-
-                }
-
-                waitQueue.queue.add(this);
-                if (!listOfQueues.contains(waitQueue))
-                {
-                    listOfQueues.add(waitQueue);
-                }
-            }
 
 		public void acquire(LotteryQueue waitQueue)
 		{
-			Lib.assertTrue(waitQueue.queue.isEmpty());
-			waitQueue.setActiveThread(this);
+			Lib.assertTrue(waitQueue.size == 0);
+			if (waitQueue.transferPriority)
+			{
+				waitQueue.holder = this;
+			}
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format("    Name: %s Tickets: %d%n", thread.getName(), tickets);
 		}
 	}
 }
@@ -0,0 +1,358 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayDeque;
+import java.util.StringTokenizer;
+
+/**
+ * A multilevel feedback queue scheduler.
+ *
+ * <p>
+ * Every queue has a number of levels, each a FIFO list; the next thread is the
+ * first one on the highest nonempty level. All threads start on the top level.
+ * Each level has a time allotment: a thread that has run that long on its level,
+ * over however many turns, is preempted at the next timer interrupt and moves
+ * down a level, so CPU-bound threads sink to the long quanta at the bottom. A
+ * thread that blocks (for example on a <tt>SynchConsole</tt> read or write)
+ * moves up a level, so interactive threads stay near the top. A running thread
+ * is also preempted at a timer interrupt if a thread on a higher level is
+ * ready. Every so often all threads are boosted back to the top level, so a
+ * thread on the bottom cannot starve.
+ *
+ * <p>
+ * The levels and quanta come from the configuration:
+ *
+ * <ul>
+ * <li><tt>MLFQScheduler.levels</tt>, the number of levels (default 3);
+ * <li><tt>MLFQScheduler.quantum</tt>, the quantum of the top level in clock
+ * ticks (default 500); each level below gets twice the one above;
+ * <li><tt>MLFQScheduler.quanta</tt>, a comma-separated list of quanta from the
+ * top level down, in place of the two above;
+ * <li><tt>MLFQScheduler.boostInterval</tt>, ticks between boosts (default
+ * 50000, 0 to never boost);
+ * <li><tt>MLFQScheduler.promoteOnBlock</tt> (default true).
+ * </ul>
+ *
+ * <p>
+ * Priorities run from 0 (the bottom level) to <tt>levels-1</tt> (the top).
+ * Priority is not transferred.
+ */
+public class MLFQScheduler extends Scheduler
+{
+	private int[] quanta;
+	private long boostInterval;
+	private boolean promoteOnBlock;
+
+	/** Boosts so far; a thread or queue that has seen fewer is due one. */
+	private long boostCount = 0;
+	private long nextBoostTime;
+
+	/**
+	 * Allocate a new MLFQ scheduler.
+	 */
+	public MLFQScheduler()
+	{
+		String quantaList = Config.getString("MLFQScheduler.quanta");
+		if (quantaList != null)
+		{
+			StringTokenizer st = new StringTokenizer(quantaList, ", ");
+			quanta = new int[st.countTokens()];
+			for (int i = 0; i < quanta.length; i++)
+			{
+				quanta[i] = Integer.parseInt(st.nextToken());
+			}
+		}
+		else
+		{
+			int levels = Config.getInteger("MLFQScheduler.levels", 3);
+			int quantum = Config.getInteger("MLFQScheduler.quantum", 500);
+			quanta = new int[levels];
+			for (int i = 0; i < levels; i++)
+			{
+				quanta[i] = quantum << i;
+			}
+		}
+		Lib.assertTrue(quanta.length > 0, "MLFQScheduler needs at least one level");
+
+		boostInterval = Config.getInteger("MLFQScheduler.boostInterval", 50000);
+		promoteOnBlock = Config.getBoolean("MLFQScheduler.promoteOnBlock", true);
+		nextBoostTime = boostInterval;
+	}
+
+	/**
+	 * Allocate a new MLFQ thread queue.
+	 *
+	 * @param transferPriority ignored. Priority is not transferred.
+	 * @return a new MLFQ thread queue.
+	 */
+	@Override
+	public ThreadQueue newThreadQueue(boolean transferPriority)
+	{
+		return new MLFQueue();
+	}
+
+	@Override
+	public int getPriority(KThread thread)
+	{
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return quanta.length - 1 - getThreadState(thread).level;
+	}
+
+	@Override
+	public int getEffectivePriority(KThread thread)
+	{
+		return getPriority(thread);
+	}
+
+	/**
+	 * Move a thread to the level for <i>priority</i>, with a fresh allotment.
+	 */
+	@Override
+	public void setPriority(KThread thread, int priority)
+	{
+		Lib.assertTrue(Machine.interrupt().disabled());
+		Lib.assertTrue(priority >= 0 && priority < quanta.length);
+
+		getThreadState(thread).setLevel(quanta.length - 1 - priority);
+	}
+
+	/**
+	 * Charge the current thread for the time it has run and preempt it if it
+	 * has used up its allotment, or a thread on a higher level is waiting to
+	 * run. Also starts a boost when one is due.
+	 */
+	@Override
+	public boolean shouldPreempt()
+	{
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		long time = Machine.timer().getTime();
+		if (boostInterval > 0 && time >= nextBoostTime)
+		{
+			boostCount++;
+			nextBoostTime = time + boostInterval;
+		}
+
+		ThreadState state = getThreadState(KThread.currentThread());
+		MLFQueue readyQueue = state.dispatchedBy;
+		if (readyQueue == null)
+		{
+			//the idle thread, or the first thread before it ever waited
+			return true;
+		}
+
+		state.charge(time);
+		if (state.used >= quanta[state.level])
+		{
+			state.setLevel(Math.min(state.level + 1, quanta.length - 1));
+			return true;
+		}
+
+		return readyQueue.hasWaiterAbove(state.level);
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread, boosted if a boost
+	 * has happened since it was last looked at.
+	 */
+	protected ThreadState getThreadState(KThread thread)
+	{
+		if (thread.schedulingState == null)
+		{
+			thread.schedulingState = new ThreadState(thread);
+		}
+
+		ThreadState state = (ThreadState) thread.schedulingState;
+		if (state.boosts != boostCount)
+		{
+			state.boosts = boostCount;
+			state.level = 0;
+			state.used = 0;
+			state.runningSince = Machine.timer().getTime();	//time before the boost is not charged to the new level
+		}
+		return state;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> with a FIFO list per level.
+	 */
+	protected class MLFQueue extends ThreadQueue
+	{
+		private ArrayDeque<ThreadState>[] levels;
+		private long boosts = boostCount;
+
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		MLFQueue()
+		{
+			levels = new ArrayDeque[quanta.length];
+			for (int i = 0; i < levels.length; i++)
+			{
+				levels[i] = new ArrayDeque<ThreadState>();
+			}
+		}
+
+		/**
+		 * Add a thread to the end of the list for its level. If it is the
+		 * current thread, charge it for the time it ran, and if it is blocking
+		 * rather than going back to the queue it was dispatched from, move it
+		 * up a level.
+		 */
+		@Override
+		public void waitForAccess(KThread thread)
+		{
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			refresh();
+			ThreadState state = getThreadState(thread);
+			if (thread == KThread.currentThread() && state.dispatchedBy != null)
+			{
+				state.charge(Machine.timer().getTime());
+				if (promoteOnBlock && state.dispatchedBy != this)
+				{
+					state.setLevel(Math.max(state.level - 1, 0));
+				}
+			}
+
+			state.waitQueue = this;
+			levels[state.level].add(state);
+		}
+
+		/**
+		 * Remove the first thread from the highest nonempty level.
+		 *
+		 * @return the thread, or <tt>null</tt> if the queue is empty.
+		 */
+		@Override
+		public KThread nextThread()
+		{
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			refresh();
+			for (int i = 0; i < levels.length; i++)
+			{
+				ThreadState state = levels[i].poll();
+				if (state != null)
+				{
+					state.waitQueue = null;
+					state.dispatchedBy = this;
+					state.runningSince = Machine.timer().getTime();
+					return state.thread;
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * The specified thread has received exclusive access, without using
+		 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
+		 * threads are waiting for access.
+		 */
+		@Override
+		public void acquire(KThread thread)
+		{
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Lib.assertTrue(!hasWaiterAbove(levels.length));
+		}
+
+		@Override
+		public void print()
+		{
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < levels.length; i++)
+			{
+				System.out.print(" [" + i + "]");
+				for (ThreadState state : levels[i])
+				{
+					System.out.print(" " + state.thread);
+				}
+			}
+		}
+
+		private boolean hasWaiterAbove(int level)
+		{
+			refresh();
+			for (int i = 0; i < level; i++)
+			{
+				if (!levels[i].isEmpty())
+				{
+					return true;
+				}
+			}
+			return false;
+		}
+
+		//apply any boost since the last look: everything moves to the top, in level order
+		private void refresh()
+		{
+			if (boosts == boostCount)
+			{
+				return;
+			}
+			boosts = boostCount;
+
+			for (int i = 1; i < levels.length; i++)
+			{
+				levels[0].addAll(levels[i]);
+				levels[i].clear();
+			}
+			for (ThreadState state : levels[0])
+			{
+				getThreadState(state.thread);
+			}
+		}
+	}
+
+	/**
+	 * The scheduling state of a thread: its level, how much of the level's
+	 * allotment it has used, and where it is queued.
+	 */
+	protected class ThreadState
+	{
+		protected KThread thread;
+
+		/** 0 is the top level. */
+		protected int level = 0;
+
+		/** Ticks run on this level since the thread got there. */
+		protected long used = 0;
+
+		private long runningSince;
+		private long boosts = boostCount;
+
+		/** The queue the thread last left through <tt>nextThread()</tt>. */
+		private MLFQueue dispatchedBy = null;
+
+		/** The queue the thread is waiting on, if any. */
+		private MLFQueue waitQueue = null;
+
+		public ThreadState(KThread thread)
+		{
+			this.thread = thread;
+		}
+
+		private void charge(long time)
+		{
+			used += time - runningSince;
+			runningSince = time;
+		}
+
+		private void setLevel(int newLevel)
+		{
+			if (waitQueue != null)
+			{
+				waitQueue.refresh();
+			}
+			if (waitQueue != null && newLevel != level)
+			{
+				waitQueue.levels[level].remove(this);
+				waitQueue.levels[newLevel].add(this);
+			}
+			level = newLevel;
+			used = 0;
+		}
+	}
+}
@@ -1,12 +1,10 @@
 package nachos.threads;
 
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Arrays;
 
 import nachos.machine.*;
 
-import java.util.Iterator;
-
 /**
  * A scheduler that chooses threads based on their priorities.
  * 
@@ -164,138 +162,220 @@ public class PriorityScheduler extends Scheduler
 
 	/**
 	 * A <tt>ThreadQueue</tt> that sorts threads by priority.
+	 *
+	 * <p>
+	 * The waiting threads are kept in an indexed d-ary max-heap ordered by
+	 * effective priority, then by how long they have waited. Each thread knows
+	 * its position in the heap, so when a donation changes its effective
+	 * priority it is moved up or down in place; <tt>waitForAccess()</tt>,
+	 * <tt>nextThread()</tt> and a priority change are all O(log n).
 	 */
 	protected class PriorityQueue extends ThreadQueue
 	{
-		/*
-		 * Return  1 (positive int) if t2's priority is higher than t1
-		 * Return -1 (negative int) if t1's priority is higher than t2
+		/**
+		 * <tt>true</tt> if this queue should transfer priority from waiting
+		 * threads to the owning thread.
 		 */
-		private Comparator<ThreadState> threadComparator = new Comparator<ThreadState>()
+		public boolean transferPriority;
+
+		/** The thread that has access, if this queue transfers priority. */
+		protected ThreadState holder = null;
+
+		private ThreadState[] heap = new ThreadState[8];
+		private int size = 0;
+
+		PriorityQueue(boolean transferPriority)
 		{
-			public int compare(ThreadState t1, ThreadState t2) 
+			this.transferPriority = transferPriority;
+		}
+
+		@Override
+		public void waitForAccess(KThread thread)
+		{
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getThreadState(thread).waitForAccess(this);
+		}
+
+		/**
+		 * Notifies thread queue that it has received access
+		 */
+		@Override
+		public void acquire(KThread thread)
+		{
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getThreadState(thread).acquire(this);
+		}
+
+		/**
+		 * Removes highest priority thread from waitQueue
+		 *
+		 * @return the next thread that has the highest priority
+		 */
+		@Override
+		public KThread nextThread()
+		{
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState next = (size == 0) ? null : remove(0);
+			if (transferPriority)
 			{
-				if (t2.hasGreaterPriorityThan(t1))
-				{
-					return 1;
-				}
-				else if (t1.getEffectivePriority() == t2.getEffectivePriority()) 
-				{
-					if (t1.waitingTime >= t2.waitingTime)
-					{
-						return 1;
-					}
-					else
-					{
-						return -1;
-					}
+				setHolder(next);
+			}
 
-				}
-				else 
-				{
-					return -1;
-				}
+			return (next == null) ? null : next.thread;
+		}
+
+		/**
+		 * Return the next thread that <tt>nextThread()</tt> would return,
+		 * without modifying the state of this queue.
+		 *
+		 * @return the next thread that <tt>nextThread()</tt> would return.
+		 */
+		protected ThreadState pickNextThread()
+		{
+			return (size == 0) ? null : heap[0];
+		}
+
+		@Override
+		public void print()
+		{
+			Lib.assertTrue(Machine.interrupt().disabled());
+			System.out.println("  Start");
+			System.out.print("     Head: " + holder);
+			for (int i = 0; i < size; i++)
+			{
+				System.out.print("        " + heap[i]);
 			}
-				};
+			System.out.println("  End");
+		}
 
-				/**
-				 * <tt>true</tt> if this queue should transfer priority from waiting
-				 * threads to the owning thread.
-				 */
-				public boolean transferPriority;
-				private java.util.PriorityQueue<ThreadState> queue;
-                                protected ThreadState activeThreadState;
+		//hand this queue to a new holder; the old one loses what its waiters donated
+		private void setHolder(ThreadState newHolder)
+		{
+			ThreadState oldHolder = holder;
+			holder = newHolder;
 
-				PriorityQueue(boolean transferPriority) 
-				{
-					this.transferPriority = transferPriority;
-					queue = new java.util.PriorityQueue<ThreadState>(10, threadComparator);
-				}
+			if (oldHolder != null && oldHolder != newHolder)
+			{
+				oldHolder.held.remove(this);
+				oldHolder.updateEffectivePriority();
+			}
+			if (newHolder != null && newHolder != oldHolder)
+			{
+				newHolder.held.add(this);
+				newHolder.updateEffectivePriority();
+			}
+		}
+
+		//the highest effective priority of any waiter, for donation to the holder
+		private int getDonation()
+		{
+			return (size == 0) ? MINIMUM_PRIORITY : heap[0].effectivePriority;
+		}
+
+		private void insert(ThreadState state)
+		{
+			if (size == heap.length)
+			{
+				heap = Arrays.copyOf(heap, size * 2);
+			}
+
+			place(state, size++);
+			siftUp(state.heapIndex);
+		}
+
+		private ThreadState remove(int i)
+		{
+			ThreadState state = heap[i];
+			ThreadState last = heap[--size];
+			heap[size] = null;
+			if (i != size)
+			{
+				place(last, i);
+				update(i);
+			}
+
+			state.heapIndex = -1;
+			state.waitQueue = null;
+			return state;
+		}
+
+		//restore the heap after the entry at i changed its effective priority
+		private void update(int i)
+		{
+			ThreadState state = heap[i];
+			siftUp(i);
+			siftDown(state.heapIndex);
+		}
 
-				@Override
-				public void waitForAccess(KThread thread)
+		private void siftUp(int i)
+		{
+			ThreadState state = heap[i];
+			while (i > 0)
+			{
+				int parent = (i - 1) / HEAP_ARITY;
+				if (!state.comesBefore(heap[parent]))
 				{
-					Lib.assertTrue(Machine.interrupt().disabled());
-					getThreadState(thread).waitForAccess(this);
+					break;
 				}
+				place(heap[parent], i);
+				i = parent;
+			}
+			place(state, i);
+		}
 
-				/**
-				 * Notifies thread queue that it has received access
-				 */
-				@Override
-				public void acquire(KThread thread)
+		private void siftDown(int i)
+		{
+			ThreadState state = heap[i];
+			while (true)
+			{
+				int first = HEAP_ARITY * i + 1;
+				if (first >= size)
 				{
-					Lib.assertTrue(Machine.interrupt().disabled());
-					getThreadState(thread).acquire(this);
+					break;
 				}
 
-				/**
-				 * Removes highest priority thread from waitQueue
-				 * 
-				 * @return the next thread that has the highest priority
-				 */
-				@Override
-				public KThread nextThread() 
+				int best = first;
+				int end = Math.min(first + HEAP_ARITY, size);
+				for (int child = first + 1; child < end; child++)
 				{
-					Lib.assertTrue(Machine.interrupt().disabled());
-                                            
-					if (queue.isEmpty())
+					if (heap[child].comesBefore(heap[best]))
 					{
-						return null;
+						best = child;
 					}
-					
-					ThreadState head = queue.remove();
-                                        activeThreadState = head;
-					head.listOfQueues.remove(this);
-					return head.thread;
 				}
-                                
-                                
-                                /**
-                                 * Signifies however is not waiting but at head of queue
-                                 * @param thread 
-                                 */
-                                protected void setActiveThread(ThreadState thread)
-                                {
-                                    this.activeThreadState = thread;
-                                }
-
-				/**
-				 * Return the next thread that <tt>nextThread()</tt> would return,
-				 * without modifying the state of this queue.
-				 * 
-				 * @return the next thread that <tt>nextThread()</tt> would return.
-				 */
-				protected ThreadState pickNextThread() 
-				{
-                                    return queue.peek();
-                                }
-				
 
-                @Override
-				public void print() 
+				if (!heap[best].comesBefore(state))
 				{
-					Lib.assertTrue(Machine.interrupt().disabled());
-					System.out.println("  Start");
-                                        System.out.print("     Head: " + activeThreadState);
-					for (Iterator<ThreadState> i = queue.iterator(); i.hasNext();)
-					{
-						System.out.print("        "+i.next());
-					}
-					System.out.println("  End");
+					break;
 				}
+				place(heap[best], i);
+				i = best;
+			}
+			place(state, i);
+		}
+
+		private void place(ThreadState state, int i)
+		{
+			heap[i] = state;
+			state.heapIndex = i;
+		}
 	}
 
-	private static ArrayList<ThreadState> deadlockKiller;
-	
+	/** Children per node in a <tt>PriorityQueue</tt> heap. */
+	private static final int HEAP_ARITY = 4;
+
+	/** Orders threads of equal priority by when they started waiting. */
+	private long waitCount = 0;
+
 	/**
 	 * The scheduling state of a thread. This should include the thread's
 	 * priority, its effective priority, any objects it owns, and the queue it's
 	 * waiting for, if any.
-	 * 
+	 *
 	 * @see nachos.threads.KThread#schedulingState
 	 */
-	protected class ThreadState 
+	protected class ThreadState
 	{
 		/** The thread with which this object is associated. */
 		protected KThread thread;
@@ -306,53 +386,62 @@ public class PriorityScheduler extends Scheduler
 		/** The effective priority of the associated thread. */
 		protected int effectivePriority;
 
-		/** The duration of time the thread has been waiting on waitQueue. */
+		/** The time the thread started waiting on its current queue. */
 		protected long waitingTime;
-		private ArrayList<PriorityQueue> listOfQueues;
+
+		/** The queue this thread is waiting on, if any. */
+		private PriorityQueue waitQueue = null;
+
+		/** Position in <tt>waitQueue</tt>'s heap, or -1. */
+		private int heapIndex = -1;
+
+		/** Where in line the thread got on <tt>waitQueue</tt>. */
+		private long waitOrder;
+
+		/** The priority-transferring queues this thread holds. */
+		private ArrayList<PriorityQueue> held = new ArrayList<PriorityQueue>();
 
 		/**
 		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
 		 * specified thread.
-		 * 
+		 *
 		 * @param thread the thread this state belongs to.
 		 */
-		public ThreadState(KThread thread) 
+		public ThreadState(KThread thread)
 		{
-			listOfQueues = new ArrayList<PriorityQueue>();
 			this.thread = thread;
 			waitingTime = Machine.timer().getTime();
 			setPriority(DEFAULT_PRIORITY);
-
 		}
 
 		/**
 		 * Return the priority of the associated thread.
-		 * 
+		 *
 		 * @return the priority of the associated thread.
 		 */
-		public int getPriority() 
+		public int getPriority()
 		{
 			return priority;
 		}
 
-                public KThread getThread()
-                {
-                    return thread;
-                }
-                
+		public KThread getThread()
+		{
+			return thread;
+		}
+
 		/**
 		 * Return the effective priority of the associated thread.
-		 * 
+		 *
 		 * @return the effective priority of the associated thread.
 		 */
-		public int getEffectivePriority() 
+		public int getEffectivePriority()
 		{
 			return effectivePriority;
 		}
 
 		/**
 		 * Set the priority of the associated thread to the specified value.
-		 * 
+		 *
 		 * @param priority the new priority.
 		 */
 		public void setPriority(int priority)
@@ -361,116 +450,105 @@ public class PriorityScheduler extends Scheduler
 			{
 				return;
 			}
-			
-			startDonations( priority, this);
-			
+
 			this.priority = priority;
-			this.effectivePriority = priority;
+			updateEffectivePriority();
+		}
+
+		/**
+		 * Called when <tt>waitForAccess(thread)</tt> (where <tt>thread</tt> is
+		 * the associated thread) is invoked on the specified priority queue.
+		 * The associated thread is therefore waiting for access to the resource
+		 * guarded by <tt>waitQueue</tt>. This method is only called if the
+		 * associated thread cannot immediately obtain access.
+		 *
+		 * @param waitQueue the queue that the associated thread is now waiting
+		 * on.
+		 *
+		 * @see nachos.threads.ThreadQueue#waitForAccess
+		 */
+		public void waitForAccess(PriorityQueue waitQueue)
+		{
+			Lib.assertTrue(this.waitQueue == null, "thread is already waiting");
+
+			waitingTime = Machine.timer().getTime();
+			waitOrder = waitCount++;
+			this.waitQueue = waitQueue;
+			waitQueue.insert(this);
+
+			if (waitQueue.transferPriority && waitQueue.holder != null)
+			{
+				waitQueue.holder.updateEffectivePriority();
+			}
 		}
 
-		 private void offerDonation(int newPriority, ThreadState masterThread)
-		 {
-			 deadlockKiller.add(masterThread);
-			 if (masterThread.getEffectivePriority() == newPriority || masterThread.hasGreaterPriorityThan(newPriority))
-			 {
-				 return;
-			 }
-			 
-			 for(PriorityQueue queue: masterThread.listOfQueues)
-			 {
-				 if (queue.transferPriority && !queue.queue.isEmpty())
-				 {
-					 ThreadState activeThread = queue.activeThreadState;
-					 if(masterThread != activeThread && !activeThread.hasGreaterPriorityThan(newPriority)
-							 && !deadlockKiller.contains(activeThread))
-					 {
-						 offerDonation(newPriority, activeThread);
-					 }
-				 }
-			 }
-			 
-			 if (!masterThread.hasGreaterPriorityThan(newPriority))
-			 {
-				 masterThread.effectivePriority = newPriority;
-			 }
-			 
-		 }
-		 
-		 private void startDonations(int newPriority, ThreadState masterThread)
-		 {
-			 if (deadlockKiller == null)
-			 {
-				 deadlockKiller = new ArrayList<ThreadState>();
-			 }
-			 offerDonation(newPriority, masterThread);
-			 deadlockKiller.clear();
-		 }
-
-		 /**
-		  * Called when <tt>waitForAccess(thread)</tt> (where <tt>thread</tt> is
-		  * the associated thread) is invoked on the specified priority queue.
-		  * The associated thread is therefore waiting for access to the resource
-		  * guarded by <tt>waitQueue</tt>. This method is only called if the
-		  * associated thread cannot immediately obtain access.
-		  * 
-		  * @param waitQueue the queue that the associated thread is now waiting
-		  * on.
-		  * 
-		  * @see nachos.threads.ThreadQueue#waitForAccess
-		  */
-		 public void waitForAccess(PriorityQueue waitQueue)
-		 {
-			 waitingTime = Machine.timer().getTime();
-
-			 if (!waitQueue.queue.isEmpty())
-			 {
-				 if (waitQueue.transferPriority)
-				 {
-					 startDonations(getEffectivePriority(), waitQueue.pickNextThread());
-				 }
-
-			 }
-
-			 waitQueue.queue.add(this);                  //I am now a part of this queue
-
-			 if (!listOfQueues.contains(waitQueue))
-			 {
-				 listOfQueues.add(waitQueue);                //I am now waiting on a lock, used for priority inherit
-			 }
-		 }
-		 
-		 /**
-		  * Called when the associated thread has acquired access to whatever is
-		  * guarded by <tt>waitQueue</tt>. This can occur either as a result of
-		  * <tt>acquire(thread)</tt> being invoked on <tt>waitQueue</tt> (where
-		  * <tt>thread</tt> is the associated thread), or as a result of
-		  * <tt>nextThread()</tt> being invoked on <tt>waitQueue</tt>.
-		  * 
-                  * @param waitQueue
-		  * @see nachos.threads.ThreadQueue#acquire
-		  * @see nachos.threads.ThreadQueue#nextThread
-		  */
-		 public void acquire(PriorityQueue waitQueue)
-		 {
-			 Lib.assertTrue(waitQueue.queue.isEmpty());		//get Lock
-			 waitQueue.setActiveThread(this);
-		 }
-
-		 @Override
-		 public String toString()
-		 {
-			 return String.format("    Name: %s Eff Priority: %d%n", thread.getName(), effectivePriority);
-		 }
-
-
-		 private boolean hasGreaterPriorityThan(ThreadState other)
-		 {
-			 return hasGreaterPriorityThan(other.effectivePriority);
-		 }
-		 
-		 private boolean hasGreaterPriorityThan(int priority)
-		 {
-			 return this.getEffectivePriority() > priority;
-		 }
+		/**
+		 * Called when the associated thread has acquired access to whatever is
+		 * guarded by <tt>waitQueue</tt>. This can occur either as a result of
+		 * <tt>acquire(thread)</tt> being invoked on <tt>waitQueue</tt> (where
+		 * <tt>thread</tt> is the associated thread), or as a result of
+		 * <tt>nextThread()</tt> being invoked on <tt>waitQueue</tt>.
+		 *
+		 * @param waitQueue
+		 * @see nachos.threads.ThreadQueue#acquire
+		 * @see nachos.threads.ThreadQueue#nextThread
+		 */
+		public void acquire(PriorityQueue waitQueue)
+		{
+			Lib.assertTrue(waitQueue.size == 0);
+			if (waitQueue.transferPriority)
+			{
+				waitQueue.setHolder(this);
+			}
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format("    Name: %s Eff Priority: %d%n", thread.getName(), effectivePriority);
+		}
+
+		/**
+		 * Recompute the effective priority from the priority and the queues
+		 * held, and if it changed pass the change on: reposition this thread
+		 * in the queue it waits on and update that queue's holder, and so on
+		 * down the chain until a holder's effective priority stays the same.
+		 */
+		private void updateEffectivePriority()
+		{
+			ThreadState state = this;
+			while (state != null)
+			{
+				int newPriority = state.priority;
+				for (int i = 0; i < state.held.size(); i++)
+				{
+					newPriority = Math.max(newPriority, state.held.get(i).getDonation());
+				}
+
+				if (newPriority == state.effectivePriority)
+				{
+					return;
+				}
+				state.effectivePriority = newPriority;
+
+				PriorityQueue queue = state.waitQueue;
+				if (queue == null)
+				{
+					return;
+				}
+				queue.update(state.heapIndex);
+
+				state = queue.transferPriority ? queue.holder : null;
+			}
+		}
+
+		private boolean comesBefore(ThreadState other)
+		{
+			if (effectivePriority != other.effectivePriority)
+			{
+				return effectivePriority > other.effectivePriority;
+			}
+			return waitOrder < other.waitOrder;
+		}
 	}
 }
@@ -129,6 +129,17 @@ public abstract class Scheduler {
 		setPriority(KThread.currentThread(), priority);
 	}
 
+	/**
+	 * Decide whether the current thread should be preempted. Called by the
+	 * alarm on every timer interrupt, with interrupts disabled. The default
+	 * preempts on every timer interrupt.
+	 * 
+	 * @return <tt>true</tt> if the current thread should yield.
+	 */
+	public boolean shouldPreempt() {
+		return true;
+	}
+
 	/**
 	 * If possible, raise the priority of the current thread in some
 	 * scheduler-dependent way.
@@ -19,6 +19,7 @@ public class ThreadedKernel extends Kernel
 	private static Communicator dummy5 = null;
 	private static Rider dummy6 = null;
 	private static ElevatorController dummy7 = null;
+	private static MLFQScheduler dummy8 = null;
 	
 	/**
 	 * Allocate a new multi-threaded kernel.
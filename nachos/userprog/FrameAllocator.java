@@ -0,0 +1,346 @@
+package nachos.userprog;
+
+import java.util.BitSet;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A <tt>FrameAllocator</tt> hands out physical page frames to user processes.
+ *
+ * It is a binary buddy allocator. Free memory is kept as blocks of
+ * 2<sup>k</sup> frames starting on a multiple of 2<sup>k</sup>; for each
+ * order k a bitmap marks the free blocks and a doubly linked list (threaded
+ * through two arrays indexed by frame) holds them for O(1) removal. Allocating
+ * a contiguous run splits the smallest block that fits and gives back the
+ * unused tail; freeing merges a block with its buddy for as long as the buddy
+ * is free. Both take O(log n) block operations. A run that no aligned block
+ * can hold (longer than the largest block, or with memory too fragmented)
+ * is found by scanning for enough free frames in a row, and the blocks it
+ * covers are split around it.
+ *
+ * <tt>allocate(int)</tt> returns frames that need not be contiguous, taking
+ * the largest blocks available, so it succeeds whenever enough frames are
+ * free no matter how fragmented memory is.
+ *
+ * All methods are atomic with respect to each other.
+ */
+public class FrameAllocator
+{
+    private final int numFrames;
+    private final int maxOrder;
+    private final BitSet[] freeBlocks;      //by order, bit (frame >> order) is set if the block is free
+    private final int[] head;               //by order, first free block or -1
+    private final int[] next;               //by frame, for the head frame of a free block
+    private final int[] prev;
+    private final BitSet inUse;             //by frame
+    private int numFree;
+    private final Lock lock;
+    private static final char dbgAllocator = 'a';
+
+    /**
+     * Allocate a new frame allocator with frames <tt>0</tt> to
+     * <tt>numFrames-1</tt> all free.
+     */
+    public FrameAllocator(int numFrames)
+    {
+        Lib.assertTrue(numFrames > 0);
+
+        this.numFrames = numFrames;
+        int order = 0;
+        while ((2 << order) <= numFrames)
+        {
+            order++;
+        }
+        maxOrder = order;
+
+        freeBlocks = new BitSet[maxOrder + 1];
+        head = new int[maxOrder + 1];
+        for (int k = 0; k <= maxOrder; k++)
+        {
+            freeBlocks[k] = new BitSet(numFrames >> k);
+            head[k] = -1;
+        }
+        next = new int[numFrames];
+        prev = new int[numFrames];
+        inUse = new BitSet(numFrames);
+        lock = new Lock();
+
+        insertRange(0, numFrames);
+        numFree = numFrames;
+    }
+
+    /**
+     * Allocate <i>count</i> contiguous frames.
+     *
+     * @return the first frame, or -1 if there is no free run that long.
+     */
+    public int allocateContiguous(int count)
+    {
+        Lib.assertTrue(count > 0);
+
+        int order = 0;
+        while ((1 << order) < count)
+        {
+            order++;
+        }
+
+        lock.acquire();
+
+        int first = -1;
+        if (count <= numFree)
+        {
+            first = (order <= maxOrder) ? allocateBlock(order) : -1;
+            if (first != -1)
+            {
+                //give back what the run does not use
+                insertRange(first + count, (1 << order) - count);
+                markUsed(first, count);
+            }
+            else
+            {
+                first = allocateUnaligned(count);
+            }
+        }
+
+        lock.release();
+
+        Lib.debug(dbgAllocator, "\tallocated " + count + " contiguous frames at " + first);
+        return first;
+    }
+
+    /**
+     * Allocate <i>count</i> frames, not necessarily contiguous.
+     *
+     * @return the frames, or <tt>null</tt> if fewer than <i>count</i> are
+     * free.
+     */
+    public int[] allocate(int count)
+    {
+        Lib.assertTrue(count >= 0);
+
+        lock.acquire();
+
+        if (count > numFree)
+        {
+            lock.release();
+            return null;
+        }
+
+        int[] frames = new int[count];
+        int allocated = 0;
+        while (allocated < count)
+        {
+            int order = Math.min(maxOrder, log2(count - allocated));
+            int first = allocateBlock(order);
+            while (first == -1)
+            {
+                //numFree says some smaller block is free
+                order--;
+                Lib.assertTrue(order >= 0);
+                first = allocateBlock(order);
+            }
+
+            int size = 1 << order;
+            markUsed(first, size);
+            for (int i = 0; i < size; i++)
+            {
+                frames[allocated++] = first + i;
+            }
+        }
+
+        lock.release();
+        return frames;
+    }
+
+    /**
+     * Free the <i>count</i> contiguous frames starting at <i>first</i>.
+     */
+    public void freeContiguous(int first, int count)
+    {
+        Lib.assertTrue(first >= 0 && count >= 0 && first + count <= numFrames);
+
+        lock.acquire();
+
+        for (int ppn = first; ppn < first + count; ppn++)
+        {
+            Lib.assertTrue(inUse.get(ppn), "frame " + ppn + " is not allocated");
+        }
+        inUse.clear(first, first + count);
+        numFree += count;
+        insertRange(first, count);
+
+        lock.release();
+    }
+
+    /**
+     * Free one frame.
+     */
+    public void free(int ppn)
+    {
+        freeContiguous(ppn, 1);
+    }
+
+    /**
+     * Free the given frames, in any order.
+     */
+    public void free(int[] frames)
+    {
+        lock.acquire();
+
+        for (int i = 0; i < frames.length; i++)
+        {
+            Lib.assertTrue(inUse.get(frames[i]), "frame " + frames[i] + " is not allocated");
+            inUse.clear(frames[i]);
+            freeBlock(frames[i], 0);
+        }
+        numFree += frames.length;
+
+        lock.release();
+    }
+
+    /**
+     * Return the number of free frames.
+     */
+    public int getNumFree()
+    {
+        return numFree;
+    }
+
+    /**
+     * Return the number of frames managed.
+     */
+    public int getNumFrames()
+    {
+        return numFrames;
+    }
+
+    private static int log2(int n)
+    {
+        return 31 - Integer.numberOfLeadingZeros(n);
+    }
+
+    private void markUsed(int first, int count)
+    {
+        inUse.set(first, first + count);
+        numFree -= count;
+    }
+
+    //take a free block of 2^order frames, splitting a larger one if needed
+    private int allocateBlock(int order)
+    {
+        int k = order;
+        while (k <= maxOrder && head[k] == -1)
+        {
+            k++;
+        }
+        if (k > maxOrder)
+        {
+            return -1;
+        }
+
+        int first = head[k];
+        unlink(first, k);
+        while (k > order)
+        {
+            k--;
+            link(first + (1 << k), k);
+        }
+        return first;
+    }
+
+    //take the first free run of count frames wherever it starts, or return -1
+    private int allocateUnaligned(int count)
+    {
+        int start = inUse.nextClearBit(0);
+        while (start < numFrames)
+        {
+            int end = inUse.nextSetBit(start);
+            if (end == -1)
+            {
+                end = numFrames;
+            }
+            if (end - start >= count)
+            {
+                //the free blocks tile [start, end), so take them all and give back the tail
+                for (int first = start; first < end;)
+                {
+                    int order = maxOrder;
+                    while ((first & ((1 << order) - 1)) != 0 || !freeBlocks[order].get(first >> order))
+                    {
+                        order--;
+                    }
+                    unlink(first, order);
+                    first += 1 << order;
+                }
+                insertRange(start + count, end - start - count);
+                markUsed(start, count);
+                return start;
+            }
+            start = inUse.nextClearBit(end);
+        }
+        return -1;
+    }
+
+    //free a block of 2^order frames, merging it with its buddy while possible
+    private void freeBlock(int first, int order)
+    {
+        while (order < maxOrder)
+        {
+            int buddy = first ^ (1 << order);
+            if (!freeBlocks[order].get(buddy >> order))
+            {
+                break;
+            }
+            unlink(buddy, order);
+            first = Math.min(first, buddy);
+            order++;
+        }
+        link(first, order);
+    }
+
+    //free a run as the largest aligned blocks that make it up
+    private void insertRange(int first, int count)
+    {
+        while (count > 0)
+        {
+            int order = Math.min(log2(count), maxOrder);
+            if (first != 0)
+            {
+                order = Math.min(order, Integer.numberOfTrailingZeros(first));
+            }
+            freeBlock(first, order);
+            first += 1 << order;
+            count -= 1 << order;
+        }
+    }
+
+    private void link(int first, int order)
+    {
+        freeBlocks[order].set(first >> order);
+        prev[first] = -1;
+        next[first] = head[order];
+        if (head[order] != -1)
+        {
+            prev[head[order]] = first;
+        }
+        head[order] = first;
+    }
+
+    private void unlink(int first, int order)
+    {
+        freeBlocks[order].clear(first >> order);
+        if (prev[first] != -1)
+        {
+            next[prev[first]] = next[first];
+        }
+        else
+        {
+            head[order] = next[first];
+        }
+        if (next[first] != -1)
+        {
+            prev[next[first]] = prev[first];
+        }
+    }
+}
@@ -3,7 +3,6 @@ package nachos.userprog;
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
-import java.util.LinkedList;
 
 /**
  * A kernel that can support multiple user processes.
@@ -17,8 +16,8 @@ public class UserKernel extends ThreadedKernel
 	// dummy variables to make javac smarter
 	private static Coff dummy1 = null;
         
-        public static LinkedList<Integer> freePhysicalPages;
-        public static Lock freePagesLock;
+        /** The free physical page frames. */
+        public static FrameAllocator frameAllocator;
 	/**
 	 * Allocate a new user kernel.
 	 */
@@ -43,17 +42,10 @@ public class UserKernel extends ThreadedKernel
 		});
                 
                 /*
-                 * Initialize freePhysicalPages with max available Physical Memory
+                 * Initially all of physical memory is free
                  */
                 
-                freePhysicalPages = new LinkedList<Integer>();
-
-                for (Integer i=0; i < Machine.processor().getNumPhysPages(); i++)
-                {
-                    freePhysicalPages.add(i);
-                }
-
-                freePagesLock = new Lock();
+                frameAllocator = new FrameAllocator(Machine.processor().getNumPhysPages());
 	}
 
 	/**
@@ -7,7 +7,6 @@ import java.io.EOFException;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
-import java.util.Collections;
 
 /**
  * Encapsulates the state of a user process that is not contained in its user
@@ -44,6 +43,10 @@ public class UserProcess
     private static final int EXIT_STATUS_STILL_ALIVE = -1;
     private boolean exitFromUnhandledException;
     private static final Lock processIdLock = new Lock();
+    private static final boolean lazyLoad = Config.getBoolean("UserProcess.lazyLoad", true);
+    private static final boolean directIO = Config.getBoolean("UserProcess.directIO", true);
+    private static final int bounceBufferSize = Config.getInteger("UserProcess.bounceBufferSize", 16 * pageSize);
+    private byte[] bounceBuffer;            //for read() and write() when they cannot go straight to memory
 
     //tracking all open files
     protected static LinkedList<String> systemWideOpenFiles = new LinkedList<String>();
@@ -451,13 +454,19 @@ public class UserProcess
      * memory. If this returns successfully, the process will definitely be run
      * (this is the last step in process initialization that can fail).
      *
+     * <p>
+     * The frames can be anywhere in physical memory. With
+     * <tt>UserProcess.lazyLoad</tt> (the default) the COFF pages are left
+     * invalid and each one is loaded the first time it is touched, by
+     * <tt>loadLazyPage()</tt>.
+     *
      * @return <tt>true</tt> if the sections were successfully loaded.
      */
     protected boolean loadSections()
     {
-        int nextFreePhysicalPage = checkForContiguousBlocks(numPages);
+        int[] frames = UserKernel.frameAllocator.allocate(numPages);
 
-        if ((numPages > Machine.processor().getNumPhysPages()) || (nextFreePhysicalPage == -1))
+        if (frames == null)
         {
             coff.close();
             printDebug("\tinsufficient physical memory");
@@ -466,11 +475,9 @@ public class UserProcess
 
         pageTable = new TranslationEntry[numPages];
 
-        //System.out.println("Next Free Physical Page: " + nextFreePhysicalPage);
         for (int i = 0; i < numPages; i++)
         {
-            int nextFreePage = UserKernel.freePhysicalPages.remove(UserKernel.freePhysicalPages.indexOf(nextFreePhysicalPage + i));
-            pageTable[i] = new TranslationEntry(i, nextFreePage, true, false, false, false);
+            pageTable[i] = new TranslationEntry(i, frames[i], true, false, false, false);
         }
 
         // load sections
@@ -485,29 +492,67 @@ public class UserProcess
             {
                 int vpn = section.getFirstVPN() + i;
 
-                // for now, just assume virtual addresses=physical addresses
-                section.loadPage(i, pageTable[vpn].ppn);
+                if (lazyLoad)
+                {
+                    pageTable[vpn].valid = false;
+                }
+                else
+                {
+                    section.loadPage(i, pageTable[vpn].ppn);
+                }
             }
         }
 
         return true;
     }
 
+    /**
+     * Load the COFF page mapped at <i>vpn</i> into its frame, if it has not
+     * been loaded yet.
+     *
+     * @return <tt>false</tt> if <i>vpn</i> is not a page of the program.
+     */
+    protected boolean loadLazyPage(int vpn)
+    {
+        if (vpn < 0 || vpn >= numPages)
+        {
+            return false;
+        }
+        if (pageTable[vpn].valid)
+        {
+            return true;
+        }
+
+        for (int s = 0; s < coff.getNumSections(); s++)
+        {
+            CoffSection section = coff.getSection(s);
+            int first = section.getFirstVPN();
+
+            if (vpn >= first && vpn < first + section.getLength())
+            {
+                printDebug("\tloading page " + vpn + " of " + section.getName());
+                section.loadPage(vpn - first, pageTable[vpn].ppn);
+                pageTable[vpn].valid = true;
+                return true;
+            }
+        }
+
+        return false;
+    }
+
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections()
     {
         coff.close();
-        UserKernel.freePagesLock.acquire();
 
+        int[] frames = new int[numPages];
         for (int i = 0; i < numPages; i++)
         {
-            UserKernel.freePhysicalPages.add(pageTable[i].ppn);
+            frames[i] = pageTable[i].ppn;
         }
-
-        Collections.sort(UserKernel.freePhysicalPages);
-        UserKernel.freePagesLock.release();
+        UserKernel.frameAllocator.free(frames);
     }
 
     /**
@@ -902,17 +947,8 @@ public class UserProcess
             return -1;
         }
 
-    	//variables for file.read
-    	/* read start from current file pointer
-         * buf - the buffer to store the bytes in.
-         * offset - the offset in the buffer to start storing bytes.
-         * length - the number of bytes to read.
-         * */
-        byte byteBuffer[] = new byte[size];//read up to count bytes into buffer
-        int pos = 0;
-        int offset = 0;
-        int length = size;//read up to count bytes into buffer
-        numberBytes = file.read(byteBuffer, offset, length);
+        //read up to count bytes from the file into buffer
+        numberBytes = transferFile(file, buffer, size, true);
 
         if ((numberBytes < 0) || (numberBytes > size))
         {
@@ -920,23 +956,158 @@ public class UserProcess
             return -1;
         }
 
-        /**
-         * @param	vaddr	the first byte of virtual memory to write.
-         * @param	data	the array containing the data to transfer.
-         * @param	offset	the first byte to transfer from the array.
-         * @param	length	the number of bytes to transfer from the array to
-         * virtual memory.
-         * @return	the number of bytes successfully transferred.
-         */
-        numberBytes = writeVirtualMemory(buffer, byteBuffer, offset, numberBytes);
+        return numberBytes;
+    }
 
-        if ((numberBytes < 0) || (numberBytes > size))
+    /**
+     * Move up to <i>length</i> bytes between <i>file</i> and user memory at
+     * <i>vaddr</i>, in the direction of a <tt>read()</tt> syscall if
+     * <i>reading</i>, else of a <tt>write()</tt>. The file reads or writes
+     * physical memory directly, one run of physically contiguous pages at a
+     * time, when <tt>canTransferDirect()</tt> allows; otherwise the data goes
+     * through this process's bounce buffer. Either way nothing is allocated
+     * per call.
+     *
+     * @return the number of bytes moved, or -1 if the file failed before any
+     * were.
+     */
+    private int transferFile(OpenFile file, int vaddr, int length, boolean reading)
+    {
+        if (vaddr < 0)
+        {
+            return 0;
+        }
+        if (directIO && canTransferDirect())
+        {
+            return transferDirect(file, vaddr, length, reading);
+        }
+
+        if (bounceBuffer == null)
+        {
+            bounceBuffer = new byte[bounceBufferSize];
+        }
+
+        int amount = 0;
+        while (amount < length)
+        {
+            int chunk = Math.min(bounceBuffer.length, length - amount);
+            int count;
+            int moved;
+
+            if (reading)
+            {
+                count = file.read(bounceBuffer, 0, chunk);
+                if (count < 0)
+                {
+                    return (amount == 0) ? -1 : amount;
+                }
+                moved = writeVirtualMemory(vaddr + amount, bounceBuffer, 0, count);
+            }
+            else
+            {
+                count = readVirtualMemory(vaddr + amount, bounceBuffer, 0, chunk);
+                moved = file.write(bounceBuffer, 0, count);
+                if (moved < 0)
+                {
+                    return (amount == 0) ? -1 : amount;
+                }
+            }
+
+            amount += moved;
+            //a short transfer on either side ends it
+            if (count < chunk || moved < count)
+            {
+                break;
+            }
+        }
+        return amount;
+    }
+
+    private int transferDirect(OpenFile file, int vaddr, int length, boolean reading)
+    {
+        byte[] memory = Machine.processor().getMemory();
+        int amount = 0;
+
+        while (amount < length)
+        {
+            int vpn = Processor.pageFromAddress(vaddr + amount);
+            int firstPpn = pageForTransfer(vpn, reading);
+            if (firstPpn == -1)
+            {
+                break;
+            }
+
+            //extend the run while the next virtual page is in the next frame
+            int runLength = Math.min(pageSize - Processor.offsetFromAddress(vaddr + amount), length - amount);
+            int lastPpn = firstPpn;
+            while (amount + runLength < length && pageForTransfer(vpn + 1, reading) == lastPpn + 1)
+            {
+                vpn++;
+                lastPpn++;
+                runLength += Math.min(pageSize, length - amount - runLength);
+            }
+
+            int paddr = Processor.makeAddress(firstPpn, Processor.offsetFromAddress(vaddr + amount));
+            int count = reading ? file.read(memory, paddr, runLength) : file.write(memory, paddr, runLength);
+            if (count < 0)
+            {
+                return (amount == 0) ? -1 : amount;
+            }
+            if (reading)
+            {
+                for (int ppn = firstPpn; ppn <= lastPpn; ppn++)
+                {
+                    Machine.processor().invalidateDecodedPage(ppn);
+                }
+            }
+
+            amount += count;
+            if (count < runLength)
+            {
+                break;
+            }
+        }
+        return amount;
+    }
+
+    /**
+     * Return whether <tt>read()</tt> and <tt>write()</tt> may hand the file
+     * physical memory directly. That is only safe if the pages of the buffer
+     * stay in their frames while the file operation blocks.
+     */
+    protected boolean canTransferDirect()
+    {
+        return true;
+    }
+
+    /**
+     * Make page <i>vpn</i> ready for a file to read or write its frame
+     * directly, and return the frame.
+     *
+     * @param writing <tt>true</tt> if the page is going to be written.
+     * @return the physical page number, or -1 if the page cannot be used.
+     */
+    protected int pageForTransfer(int vpn, boolean writing)
+    {
+        if (vpn < 0 || vpn >= numPages)
+        {
+            return -1;
+        }
+        if (!pageTable[vpn].valid && !loadLazyPage(vpn))
+        {
+            return -1;
+        }
+        if (writing && pageTable[vpn].readOnly)
         {
-            printDebug("\t write to virtual memory error - handleRead");
             return -1;
         }
 
-        return numberBytes;
+        pageTable[vpn].used = true;
+        if (writing)
+        {
+            pageTable[vpn].dirty = true;
+        }
+        return pageTable[vpn].ppn;
     }
 
     /**
@@ -987,39 +1158,8 @@ public class UserProcess
             return -1;
         }
 
-        //variables for readVirtualMemory from  memory to byteBuffer
-    	/* @param vaddr the first byte of virtual memory to read.
-         * @param data the array where the data will be stored.
-         * @param offset the first byte to write in the array.
-         * @param length the number of bytes to transfer from virtual memory to the
-         * array.
-         * @return the number of bytes successfully transferred.
-         * */
-        byte byteBuffer[] = new byte[size];//read up to count bytes into buffer
-        int offset = 0;
-        int length = size;//read up to count bytes into buffer
-        numberBytes = readVirtualMemory(buffer, byteBuffer, offset, length);//buffer is address
-
-        if ((numberBytes < 0) || (numberBytes > size))
-        {
-            printDebug("\t read data from virtual memory error - handleWrite");
-            return -1;
-        }
-
-    	//variables for file.write
-    	/*
-         * Write this file starting at the current file pointer and return the
-         * number of bytes successfully written. Advances the file pointer by this
-         * amount. If no bytes could be written because of a fatal error, returns
-         -1.
-         * 
-         * @param buf the buffer to get the bytes from.
-         * @param offset the offset in the buffer to start getting.
-         * @param length the number of bytes to write.
-         @return the actual number of bytes successfully written, or -1 on
-         * failure.
-         */
-        numberBytes = file.write(byteBuffer, offset, numberBytes);
+        //write up to count bytes from buffer (a virtual address) to the file
+        numberBytes = transferFile(file, buffer, size, false);
 
         if ((numberBytes < 0) || (numberBytes > size))
         {
@@ -1062,6 +1202,7 @@ public class UserProcess
         }
 
         OpenFile file = fileDescribtors[fd];
+        fileClosing(fd, file);
         fileDescribtors[fd] = null;
         file.close();
 
@@ -1079,6 +1220,27 @@ public class UserProcess
 
     }
 
+    /**
+     * Called by <tt>close()</tt>, including the implicit closes at exit, just
+     * before <i>file</i> is closed, so a subclass can finish anything it still
+     * has to do with it.
+     */
+    protected void fileClosing(int fd, OpenFile file)
+    {
+    }
+
+    /**
+     * Return the file open on <i>fd</i>, or <tt>null</tt>.
+     */
+    protected OpenFile getOpenFile(int fd)
+    {
+        if ((fd < 0) || (fd > 15))
+        {
+            return null;
+        }
+        return fileDescribtors[fd];
+    }
+
     /**
      * Delete a file from the file system. If no processes have the file open,
      * the file is deleted immediately and the space it was using is made
@@ -1291,14 +1453,27 @@ public class UserProcess
                 processor.advancePC();
                 break;
 
+            case Processor.exceptionPageFault:
+                if (!loadLazyPage(Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr))))
+                {
+                    //not a page of the program, so it is fatal like any other
+                    handleUnexpectedException(cause);
+                }
+                break;
+
             default:
-                printDebug("Unexpected exception: " + Processor.exceptionNames[cause]);
-                exitFromUnhandledException = true;
-                handleExit(EXIT_STATUS_STILL_ALIVE);
+                handleUnexpectedException(cause);
                 break;
         }
     }
 
+    private void handleUnexpectedException(int cause)
+    {
+        printDebug("Unexpected exception: " + Processor.exceptionNames[cause]);
+        exitFromUnhandledException = true;
+        handleExit(EXIT_STATUS_STILL_ALIVE);
+    }
+
     public int handleSyscall(int syscall, int a0, int a1, int a2, int a3)
     {
         SysCall call = SysCall.lookup(syscall);
@@ -1388,69 +1563,6 @@ public class UserProcess
         }
     }
 
-    /*
-     * Function to determine best location in Physical memory to 
-     * to create a contigious block of Virtual Memory
-     * 
-     * @param numberOfPagesNeeded number of Physical Pages needed by Process
-     */
-    private int checkForContiguousBlocks(int numberOfPagesNeeded)
-    {
-        int startIndex = 0;
-        int counter = 0;
-        int lastPage = 0;
-        boolean blockNotFound = true;
-        UserKernel.freePagesLock.acquire();
-
-        startIndex = UserKernel.freePhysicalPages.peekFirst();
-
-        //System.out.println("# of Pages Needed: " + numberOfPagesNeeded);
-        for (Integer freePage : UserKernel.freePhysicalPages)
-        {
-            if (freePage == startIndex)
-            {
-                //init counter
-                counter = 1;
-                lastPage = freePage;
-                //System.out.println("\n Current Page: " + freePage + " Counter: " + counter + " lastPage: " + lastPage + " startIndex: " + startIndex);
-            }
-            else if (counter == numberOfPagesNeeded)
-            {
-                blockNotFound = false;
-                break;
-            }
-            else if (freePage == (lastPage + 1))
-            {
-                counter++;
-                lastPage = freePage;
-                //System.out.println("\n Current Page: " + freePage + " Counter: " + counter + " lastPage: " + lastPage + " startIndex: " + startIndex);
-            }
-
-            else
-            {
-                //Hole in Physical Memory Detected! Reset startIndex
-                startIndex = freePage;
-                lastPage = freePage;
-                counter = 1;
-                //System.out.println("Hole Found! Restarting search..");
-                //System.out.println("\n Current Page: " + freePage + " Counter: " + counter + " lastPage: " + lastPage + " startIndex: " + startIndex);
-            }
-        }
-
-        UserKernel.freePagesLock.release();
-
-        if (!blockNotFound)
-        {
-            //System.out.println("Allocation found!, Returning index; " + startIndex);
-            return startIndex;
-        }
-        else
-        {
-            //THROW ERROR IF INDEX IS STILL NOT FOUND!
-            return -1;
-        }
-    }
-
     protected int virtualMemoryCommandHandler(int vaddr, byte[] data, int offset, int length, boolean readCommand)
     {
         Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
@@ -1461,11 +1573,12 @@ public class UserProcess
 
         byte[] memory = Machine.processor().getMemory();
 
-        // for now, just assume that virtual addresses equal physical addresses
-        if (vaddr < 0 || vaddr >= memory.length)
+        //frames are scattered, so bound the access by the address space and translate each page
+        if (vaddr < 0 || vaddr >= numPages * pageSize)
         {
             return 0;
         }
+        lastPageToXfer = Math.min(lastPageToXfer, numPages - 1);
 
         for (int i = firstPageToXfer; i <= lastPageToXfer; i++)
         {
@@ -1474,7 +1587,7 @@ public class UserProcess
             int pageOffsetStart;
             int pageOffsetEnd;
 
-            if (pageTable[i].valid != true)
+            if (pageTable[i].valid != true && !loadLazyPage(i))
             {
                 break;
             }
@@ -1490,12 +1603,12 @@ public class UserProcess
                 if (vaddr <= startVAddr)
                 {
                     pageOffsetStart = 0;
-                    pageOffsetEnd = pageSize - 1;
+                    pageOffsetEnd = Math.min(pageSize, (vaddr + length) - startVAddr);
                 }
                 else
                 {
                     pageOffsetStart = vaddr - startVAddr;
-                    pageOffsetEnd = pageSize - 1;
+                    pageOffsetEnd = Math.min(pageSize, (vaddr + length) - startVAddr);
                 }
             }
             //copy begin of page to not quite the end
@@ -1518,6 +1631,7 @@ public class UserProcess
             else
             {
                 System.arraycopy(data, offset + amount, memory, Machine.processor().makeAddress(pageTable[i].ppn, pageOffsetStart), pageOffsetEnd - pageOffsetStart);
+                Machine.processor().invalidateDecodedPage(pageTable[i].ppn);
             }
 
             amount += (pageOffsetEnd - pageOffsetStart);
@@ -0,0 +1,118 @@
+package nachos.vm;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashSet;
+
+/**
+ * A <tt>ARCReplacement</tt>
+ * Adaptive Replacement Cache, in its clock form (CAR) since the hardware
+ * only gives us used bits rather than a callback on every reference.
+ *
+ * Resident pages live on two clocks: T1 holds pages seen once recently, T2
+ * pages seen at least twice. B1 and B2 remember the (pid, vpn) of pages
+ * recently evicted from T1 and T2. A fault on a page remembered in B1 means
+ * T1 was too small, so its target size <tt>p</tt> grows; a fault on a page in
+ * B2 shrinks it. Pages faulted back from either ghost list go to T2.
+ *
+ * The hand sweeps T1 while it is over its target, T2 otherwise. A referenced
+ * page in either clock is cleared and moved to the tail of T2.
+ */
+public class ARCReplacement extends ReplacementAlgorithm
+{
+    private final String algorithmName = "ARC";
+    private final ArrayDeque<Integer> t1 = new ArrayDeque<Integer>();
+    private final ArrayDeque<Integer> t2 = new ArrayDeque<Integer>();
+    private final LinkedHashSet<Long> b1 = new LinkedHashSet<Long>();
+    private final LinkedHashSet<Long> b2 = new LinkedHashSet<Long>();
+    private int p;
+
+    public ARCReplacement()
+    {
+        super();
+        p = 0;
+    }
+
+    @Override
+    int selectVictim()
+    {
+        while (true)
+        {
+            if (!t1.isEmpty() && (t1.size() >= Math.max(1, p) || t2.isEmpty()))
+            {
+                int ppn = t1.removeFirst();
+                MemoryPage page = pageIn(ppn);
+                if (!page.entry.used)
+                {
+                    remember(b1, page);
+                    return ppn;
+                }
+                page.entry.used = false;
+                t2.addLast(ppn);
+            }
+            else
+            {
+                int ppn = t2.removeFirst();
+                MemoryPage page = pageIn(ppn);
+                if (!page.entry.used)
+                {
+                    remember(b2, page);
+                    return ppn;
+                }
+                page.entry.used = false;
+                t2.addLast(ppn);
+            }
+        }
+    }
+
+    @Override
+    void pageMapped(int ppn, MemoryPage page)
+    {
+        Long key = PageKeyMap.makeKey(page.getOwningProcessId(), page.getVirtualPageNumber());
+        if (b1.remove(key))
+        {
+            p = Math.min(p + Math.max(1, b2.size() / Math.max(1, b1.size())), numFrames);
+            t2.addLast(ppn);
+        }
+        else if (b2.remove(key))
+        {
+            p = Math.max(p - Math.max(1, b1.size() / Math.max(1, b2.size())), 0);
+            t2.addLast(ppn);
+        }
+        else
+        {
+            t1.addLast(ppn);
+        }
+        trimGhosts();
+    }
+
+    @Override
+    void frameFreed(int ppn)
+    {
+        //the owner exited, so it is no use remembering its pages either
+        t1.remove((Integer) ppn);
+        t2.remove((Integer) ppn);
+    }
+
+    public String getAlgorithmName()
+    {
+        return algorithmName;
+    }
+
+    private void remember(LinkedHashSet<Long> ghosts, MemoryPage page)
+    {
+        ghosts.add(PageKeyMap.makeKey(page.getOwningProcessId(), page.getVirtualPageNumber()));
+    }
+
+    //|T1| + |B1| <= c and the whole directory <= 2c, dropping the oldest ghosts first
+    private void trimGhosts()
+    {
+        while (!b1.isEmpty() && t1.size() + b1.size() > numFrames)
+        {
+            b1.remove(b1.iterator().next());
+        }
+        while (!b2.isEmpty() && t1.size() + t2.size() + b1.size() + b2.size() > 2 * numFrames)
+        {
+            b2.remove(b2.iterator().next());
+        }
+    }
+}
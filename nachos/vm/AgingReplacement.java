@@ -0,0 +1,73 @@
+package nachos.vm;
+
+/**
+ * A <tt>AgingReplacement</tt>
+ * LRU approximation by aging. Every frame has an 8 bit age counter. On each
+ * replacement all counters are shifted right and the frame's used bit is
+ * shifted in at the top, then cleared, so the counter holds the reference
+ * history of the last eight replacements. The frame with the smallest
+ * counter (least recently used) is evicted; ties go to the frame after the
+ * previous victim so equal pages are taken in turn.
+ *
+ * A newly loaded page starts with its top bit set, because the instruction
+ * that faulted on it has not run yet.
+ */
+public class AgingReplacement extends ReplacementAlgorithm
+{
+    private static final int NEW_PAGE_AGE = 0x80;
+
+    private final String algorithmName = "Aging";
+    private final int[] age;
+    private int lastVictim;
+
+    public AgingReplacement()
+    {
+        super();
+        age = new int[numFrames];
+        lastVictim = numFrames - 1;
+    }
+
+    @Override
+    int selectVictim()
+    {
+        for (int ppn = 0; ppn < numFrames; ppn++)
+        {
+            MemoryPage page = pageIn(ppn);
+            age[ppn] >>>= 1;
+            if (page.entry.used)
+            {
+                age[ppn] |= 0x80;
+                page.entry.used = false;
+            }
+        }
+
+        int victim = -1;
+        for (int i = 1; i <= numFrames; i++)
+        {
+            int ppn = (lastVictim + i) % numFrames;
+            if (victim == -1 || age[ppn] < age[victim])
+            {
+                victim = ppn;
+            }
+        }
+        lastVictim = victim;
+        return victim;
+    }
+
+    @Override
+    void pageMapped(int ppn, MemoryPage page)
+    {
+        age[ppn] = NEW_PAGE_AGE;
+    }
+
+    @Override
+    void frameFreed(int ppn)
+    {
+        age[ppn] = 0;
+    }
+
+    public String getAlgorithmName()
+    {
+        return algorithmName;
+    }
+}
@@ -0,0 +1,51 @@
+package nachos.vm;
+
+import nachos.machine.OpenFile;
+import nachos.machine.Processor;
+import nachos.threads.ThreadedKernel;
+
+/**
+ * A <tt>FileSwapBackend</tt>
+ * keeps the swap file on the kernel file system and moves every page through
+ * <tt>OpenFile.read()</tt> and <tt>OpenFile.write()</tt>.
+ */
+public class FileSwapBackend extends SwapBackend
+{
+    private final String fileName;
+    private OpenFile openFile;
+
+    public FileSwapBackend(String fileName, int initialFrames)
+    {
+        this.fileName = fileName;
+
+        //create new file and write null chars into it (clearing any prev data)
+        openFile = ThreadedKernel.fileSystem.open(fileName, true);
+        byte[] zeroBuffer = new byte[Processor.pageSize * initialFrames];
+        openFile.write(zeroBuffer, 0, zeroBuffer.length);
+    }
+
+    @Override
+    int read(int frameNumber, byte[] buf, int offset, int length)
+    {
+        return openFile.read(frameNumber * Processor.pageSize, buf, offset, length);
+    }
+
+    @Override
+    int write(int frameNumber, byte[] buf, int offset, int length)
+    {
+        return openFile.write(frameNumber * Processor.pageSize, buf, offset, length);
+    }
+
+    @Override
+    void close()
+    {
+        openFile.close();
+        ThreadedKernel.fileSystem.remove(fileName);
+    }
+
+    @Override
+    String getBackendName()
+    {
+        return "file";
+    }
+}
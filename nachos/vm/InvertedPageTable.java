@@ -1,14 +1,27 @@
 package nachos.vm;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import nachos.machine.Lib;
+import nachos.machine.Machine;
 import nachos.threads.Semaphore;
 
+/**
+ * Global (pid, vpn) -> ppn mapping for every page resident in physical memory.
+ *
+ * Lookups go through a <tt>PageKeyMap</tt>, so they never box and never walk
+ * the whole table. Every ppn can belong to at most one key, so a reverse
+ * ppn -> key array gives a constant time duplicate check and lets a frame be
+ * unmapped without knowing who owns it. The exception is a frame shared by
+ * several processes (see <tt>SharedPageCache</tt>), which is marked SHARED
+ * in the reverse array until <tt>unshare()</tt> is called.
+ */
 public class InvertedPageTable
 {
-    private static ArrayList<Integer> pidArray;
-    private static ArrayList<Integer> vpnArray;
-    private static ArrayList<Integer> ppnArray;
+    private static final long EMPTY = -1L;
+    private static final long SHARED = -2L;
+
+    private static PageKeyMap table;
+    private static long[] keyOfPpn;     //reverse map, EMPTY if frame is not mapped
     private static boolean initialized = false;
     private static Semaphore sem;
 
@@ -24,85 +37,120 @@ public class InvertedPageTable
             return false;
         }
         initialized = true;
-        pidArray = new ArrayList<Integer>();
-        vpnArray = new ArrayList<Integer>();
-        ppnArray = new ArrayList<Integer>();
+
+        int numPhysPages = Machine.processor().getNumPhysPages();
+        table = new PageKeyMap(numPhysPages);
+        keyOfPpn = new long[numPhysPages];
+        Arrays.fill(keyOfPpn, EMPTY);
         sem = new Semaphore(1);
 
         return true;
     }
 
-    public static boolean put(Integer pid, Integer vpn, Integer ppn)
+    /**
+     * Map (pid, vpn) to ppn.
+     *
+     * @return <tt>true</tt> if an existing mapping for (pid, vpn) was replaced.
+     */
+    public static boolean put(int pid, int vpn, int ppn)
     {
-        int size = vpnArray.size();
-        Lib.assertTrue(pidArray.size() == size && size == ppnArray.size());
+        long key = PageKeyMap.makeKey(pid, vpn);
         sem.P();
 
-        for (Integer temp : ppnArray)
+        if (keyOfPpn[ppn] != EMPTY && keyOfPpn[ppn] != key)
         {
-            if (temp == ppn)
-            {
-                Lib.assertNotReached("Detecting duplicate use of ppn: " + ppn);
-            }
+            Lib.assertNotReached("Detecting duplicate use of ppn: " + ppn);
         }
 
-        for (int i = 0; i < size; i++)
+        int previous = table.put(key, ppn);
+        if (previous != PageKeyMap.NOT_FOUND)
         {
-            if ((pidArray.get(i) == pid) && (vpnArray.get(i) == vpn))
-            {
+            keyOfPpn[previous] = EMPTY;
+        }
+        keyOfPpn[ppn] = key;
 
-                ppnArray.set(i, ppn);
-                sem.V();
-                return true;
-            }
+        sem.V();
+        return previous != PageKeyMap.NOT_FOUND;
+    }
 
-        }
+    /**
+     * Map (pid, vpn) to a frame that other processes map as well.
+     */
+    public static void putShared(int pid, int vpn, int ppn)
+    {
+        long key = PageKeyMap.makeKey(pid, vpn);
+        sem.P();
+
+        Lib.assertTrue(keyOfPpn[ppn] == EMPTY || keyOfPpn[ppn] == SHARED);
+        table.put(key, ppn);
+        keyOfPpn[ppn] = SHARED;
 
-        pidArray.add(pid);
-        vpnArray.add(vpn);
-        ppnArray.add(ppn);
         sem.V();
-        return false;
     }
 
-    public static Integer get(Integer pid, Integer vpn)
+    /**
+     * Called once no process maps the shared frame <i>ppn</i> any more.
+     */
+    public static void unshare(int ppn)
     {
-        int size = vpnArray.size();
-        Lib.assertTrue(pidArray.size() == size && size == ppnArray.size());
         sem.P();
-        for (int i = 0; i < size; i++)
+        if (keyOfPpn[ppn] == SHARED)
         {
-            if ((pidArray.get(i) == pid) && (vpnArray.get(i) == vpn))
-            {
-                sem.V();
-                return ppnArray.get(i);
-            }
-
+            keyOfPpn[ppn] = EMPTY;
         }
         sem.V();
-        return null;
     }
 
-    public static Integer remove(Integer pid, Integer vpn)
+    public static Integer get(int pid, int vpn)
+    {
+        int ppn = getPpn(pid, vpn);
+        return (ppn == PageKeyMap.NOT_FOUND) ? null : ppn;
+    }
+
+    /**
+     * Same as <tt>get()</tt> but without boxing the result.
+     *
+     * @return the ppn mapped to (pid, vpn), or -1 if the page is not resident.
+     */
+    public static int getPpn(int pid, int vpn)
+    {
+        sem.P();
+        int ppn = table.get(pid, vpn);
+        sem.V();
+        return ppn;
+    }
+
+    public static Integer remove(int pid, int vpn)
     {
-        int size = vpnArray.size();
-        Lib.assertTrue(pidArray.size() == size && size == ppnArray.size());
         sem.P();
-        for (int i = 0; i < size; i++)
+        int ppn = table.remove(PageKeyMap.makeKey(pid, vpn));
+        if (ppn != PageKeyMap.NOT_FOUND && keyOfPpn[ppn] != SHARED)
         {
-            if ((pidArray.get(i) == pid) && (vpnArray.get(i) == vpn))
-            {
-                int temp = ppnArray.get(i);
-                pidArray.remove(i);
-                vpnArray.remove(i);
-                ppnArray.remove(i);
-                sem.V();
-                return temp;
-            }
+            keyOfPpn[ppn] = EMPTY;
+        }
+        sem.V();
+        return (ppn == PageKeyMap.NOT_FOUND) ? null : ppn;
+    }
 
+    /**
+     * Drop whatever mapping currently points at <i>ppn</i>.
+     *
+     * @return <tt>true</tt> if the frame was mapped.
+     */
+    public static boolean removePpn(int ppn)
+    {
+        sem.P();
+        long key = keyOfPpn[ppn];
+        if (key == EMPTY || key == SHARED)
+        {
+            sem.V();
+            return false;
         }
+
+        keyOfPpn[ppn] = EMPTY;
+        table.remove(key);
         sem.V();
-        return null;
+        return true;
     }
 
     public static boolean isInitialized()
@@ -110,16 +158,30 @@ public class InvertedPageTable
         return initialized;
     }
 
+    public static int size()
+    {
+        return table.size();
+    }
+
     public static String getString()
     {
         StringBuilder sb = new StringBuilder();
 
-        int size = vpnArray.size();
-        for (int i = 0; i < size; i++)
+        for (int ppn = 0; ppn < keyOfPpn.length; ppn++)
         {
-            sb.append("      **pid: ").append(pidArray.get(i)).
-                    append(", vpn: ").append(vpnArray.get(i)).
-                    append(", ppn: ").append(ppnArray.get(i)).
+            long key = keyOfPpn[ppn];
+            if (key == EMPTY)
+            {
+                continue;
+            }
+            if (key == SHARED)
+            {
+                sb.append("      **shared, ppn: ").append(ppn).append("\n");
+                continue;
+            }
+            sb.append("      **pid: ").append(PageKeyMap.pidFromKey(key)).
+                    append(", vpn: ").append(PageKeyMap.vpnFromKey(key)).
+                    append(", ppn: ").append(ppn).
                     append("\n");
 
         }
@@ -12,6 +12,7 @@ public class LoaderForCoff
     private static final int MAX_STACK_PAGES = 8;
     private static final boolean debugFlag = true;
     private final Coff coff;
+    private final String executable;
     private final int PAGES_RESERVED_FOR_CODE;
     private final int[] SECTION_NUMBERS;
     private final int[] SECTION_OFFSET_NUMBERS;
@@ -19,9 +20,10 @@ public class LoaderForCoff
     private static final byte[] ZERO_BUFFER = new byte[Processor.pageSize];
 
     //A lazy loader for code and stack pages
-    public LoaderForCoff(Coff coff)
+    public LoaderForCoff(Coff coff, String executable)
     {
         this.coff = coff;
+        this.executable = executable;
 
         int count = 0;
         for (int i = 0; i < coff.getNumSections(); i++)
@@ -115,9 +117,33 @@ public class LoaderForCoff
         int pageStart = Processor.makeAddress(physicalPage, 0);
         sb.append("Page Start index: ").append(pageStart).append(", page end index: ");
         System.arraycopy(ZERO_BUFFER, 0, Machine.processor().getMemory(), pageStart, Processor.pageSize);
+        Machine.processor().invalidateDecodedPage(physicalPage);
         printDebug("      Zeroed out ppn: " + physicalPage + ", :" + sb.toString());
     }
 
+    //true if vpn is backed by a section of the coff file
+    public boolean isCodePage(int virtualPage)
+    {
+        return virtualPage >= 0 && virtualPage < PAGES_RESERVED_FOR_CODE;
+    }
+
+    //true if vpn is backed by a section the program may write to
+    public boolean isWritablePage(int virtualPage)
+    {
+        return isCodePage(virtualPage) && !coff.getSection(SECTION_NUMBERS[virtualPage]).isReadOnly();
+    }
+
+    public int getNumCodePages()
+    {
+        return PAGES_RESERVED_FOR_CODE;
+    }
+
+    //name the executable was loaded from, which identifies its pages to the shared page cache
+    public String getExecutable()
+    {
+        return executable;
+    }
+
     public Coff getCoff()
     {
         return coff;
@@ -0,0 +1,119 @@
+package nachos.vm;
+
+import java.util.Arrays;
+
+import nachos.machine.Machine;
+import nachos.machine.OpenFile;
+import nachos.machine.Processor;
+
+/**
+ * A <tt>MappedFile</tt>
+ *
+ * is a file mapped into a process's address space by <tt>mmap()</tt>. Its
+ * pages are read from the file the first time they are touched and written
+ * back to the file, not to the swap file, when they are evicted dirty or the
+ * file is closed. The part of the last page past the end of the file reads
+ * as zeros and is never written back.
+ */
+public class MappedFile
+{
+    private static final int pageSize = Processor.pageSize;
+
+    private static int numPagesRead = 0;
+    private static int numPagesWritten = 0;
+
+    private final int fd;
+    private final OpenFile file;
+    private final int firstVpn;
+    private final int numPages;
+    private final int length;
+
+    public MappedFile(int fd, OpenFile file, int firstVpn, int length)
+    {
+        this.fd = fd;
+        this.file = file;
+        this.firstVpn = firstVpn;
+        this.length = length;
+        numPages = (length + pageSize - 1) / pageSize;
+    }
+
+    public int getFd()
+    {
+        return fd;
+    }
+
+    public int getFirstVpn()
+    {
+        return firstVpn;
+    }
+
+    public int getNumPages()
+    {
+        return numPages;
+    }
+
+    public boolean contains(int vpn)
+    {
+        return vpn >= firstVpn && vpn < firstVpn + numPages;
+    }
+
+    //true if the vpns of this mapping and [first, first + count) overlap
+    public boolean overlaps(int first, int count)
+    {
+        return first < firstVpn + numPages && firstVpn < first + count;
+    }
+
+    /**
+     * Fill frame <i>ppn</i> with page <i>vpn</i> of the mapping.
+     *
+     * @return <tt>false</tt> if the file could not be read.
+     */
+    public boolean readPage(int vpn, int ppn)
+    {
+        byte[] memory = Machine.processor().getMemory();
+        int paddr = Processor.makeAddress(ppn, 0);
+        int count = bytesInPage(vpn);
+
+        int read = file.read(filePosition(vpn), memory, paddr, count);
+        if (read < 0)
+        {
+            return false;
+        }
+        //whatever the file did not supply reads as zeros
+        Arrays.fill(memory, paddr + read, paddr + pageSize, (byte) 0);
+        Machine.processor().invalidateDecodedPage(ppn);
+
+        numPagesRead++;
+        return true;
+    }
+
+    /**
+     * Write page <i>vpn</i> of the mapping back to the file from frame
+     * <i>ppn</i>.
+     *
+     * @return <tt>false</tt> if the file could not be written.
+     */
+    public boolean writePage(int vpn, int ppn)
+    {
+        int count = bytesInPage(vpn);
+        int written = file.write(filePosition(vpn), Machine.processor().getMemory(), Processor.makeAddress(ppn, 0), count);
+
+        numPagesWritten++;
+        return written == count;
+    }
+
+    public static String getStatistics()
+    {
+        return String.format("Mapped files: pages read %d, pages written back %d", numPagesRead, numPagesWritten);
+    }
+
+    private int filePosition(int vpn)
+    {
+        return (vpn - firstVpn) * pageSize;
+    }
+
+    private int bytesInPage(int vpn)
+    {
+        return Math.min(pageSize, length - filePosition(vpn));
+    }
+}
@@ -0,0 +1,26 @@
+package nachos.vm;
+
+import nachos.machine.TranslationEntry;
+
+/**
+ * A <tt>MappedMemoryPage</tt>
+ *
+ * is a frame holding a page of a mapped file. Its backing store is the file,
+ * so it is written back there rather than to the swap file, and the
+ * writeback daemon leaves it alone.
+ */
+public class MappedMemoryPage extends MemoryPage
+{
+    private final MappedFile file;
+
+    public MappedMemoryPage(MappedFile file, int processId, int virtualPageNumber, TranslationEntry entry)
+    {
+        super(processId, virtualPageNumber, entry);
+        this.file = file;
+    }
+
+    public MappedFile getFile()
+    {
+        return file;
+    }
+}
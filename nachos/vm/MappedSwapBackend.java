@@ -0,0 +1,125 @@
+package nachos.vm;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+import nachos.machine.Machine;
+import nachos.machine.Processor;
+import nachos.machine.StubFileSystem;
+
+/**
+ * A <tt>MappedSwapBackend</tt>
+ * maps the swap file into memory, so moving a page is a single bulk
+ * <tt>get()</tt> or <tt>put()</tt> between the mapped region and main memory
+ * instead of a seek plus read or write per page.
+ *
+ * The region starts at <tt>VMKernel.swapFrames</tt> frames and is remapped at
+ * twice the size whenever a frame past its end is touched.
+ */
+public class MappedSwapBackend extends SwapBackend
+{
+    private final String fileName;
+    private final StubFileSystem fileSystem;
+    private MappedByteBuffer region;
+    private int numFrames;
+
+    private MappedSwapBackend(String fileName, StubFileSystem fileSystem, MappedByteBuffer region, int numFrames)
+    {
+        this.fileName = fileName;
+        this.fileSystem = fileSystem;
+        this.region = region;
+        this.numFrames = numFrames;
+    }
+
+    /**
+     * Map a fresh swap file of <i>initialFrames</i> frames.
+     *
+     * @return the backend, or <tt>null</tt> if the machine has no stub file
+     * system or the file cannot be mapped.
+     */
+    public static MappedSwapBackend create(String fileName, int initialFrames)
+    {
+        if (!(Machine.stubFileSystem() instanceof StubFileSystem))
+        {
+            return null;
+        }
+        StubFileSystem fileSystem = (StubFileSystem) Machine.stubFileSystem();
+
+        //clear out whatever an earlier run left behind before mapping
+        fileSystem.remove(fileName);
+        MappedByteBuffer region = fileSystem.map(fileName, initialFrames * Processor.pageSize);
+        if (region == null)
+        {
+            return null;
+        }
+        return new MappedSwapBackend(fileName, fileSystem, region, initialFrames);
+    }
+
+    @Override
+    int read(int frameNumber, byte[] buf, int offset, int length)
+    {
+        ByteBuffer frame = frame(frameNumber, length);
+        if (frame == null)
+        {
+            return -1;
+        }
+        frame.get(buf, offset, length);
+        return length;
+    }
+
+    @Override
+    int write(int frameNumber, byte[] buf, int offset, int length)
+    {
+        ByteBuffer frame = frame(frameNumber, length);
+        if (frame == null)
+        {
+            return -1;
+        }
+        frame.put(buf, offset, length);
+        return length;
+    }
+
+    @Override
+    void close()
+    {
+        region = null;
+        fileSystem.remove(fileName);
+    }
+
+    @Override
+    String getBackendName()
+    {
+        return "mapped";
+    }
+
+    //a view of the region positioned at the start of frameNumber, with room for length bytes
+    private ByteBuffer frame(int frameNumber, int length)
+    {
+        if (frameNumber < 0)
+        {
+            return null;
+        }
+        int lastFrame = frameNumber + (length - 1) / Processor.pageSize;
+        if (lastFrame >= numFrames && !grow(lastFrame + 1))
+        {
+            return null;
+        }
+
+        ByteBuffer frame = region.duplicate();
+        frame.position(frameNumber * Processor.pageSize);
+        return frame;
+    }
+
+    private boolean grow(int minFrames)
+    {
+        int frames = Math.max(minFrames, numFrames * 2);
+        MappedByteBuffer bigger = fileSystem.map(fileName, frames * Processor.pageSize);
+        if (bigger == null)
+        {
+            return false;
+        }
+        region = bigger;
+        numFrames = frames;
+        return true;
+    }
+}
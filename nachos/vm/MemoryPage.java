@@ -11,6 +11,8 @@ public class MemoryPage
     private final int processId;
     private final int virtualPageNumber;
     public TranslationEntry entry;
+    public boolean cleanedByWriteback = false;  //set when the writeback daemon wrote this page out
+    public boolean prefetched = false;          //brought in by read-ahead and not referenced yet
 
     public MemoryPage(int processId, int virtualPageNumber, TranslationEntry entry)
     {
@@ -38,4 +40,10 @@ public class MemoryPage
     {
         return virtualPageNumber;
     }
+
+    //this frame still holds vpn of process pid
+    public boolean holds(int pid, int vpn)
+    {
+        return entry.valid && processId == pid && virtualPageNumber == vpn;
+    }
 }
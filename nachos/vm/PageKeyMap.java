@@ -0,0 +1,173 @@
+package nachos.vm;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash map from a (pid, vpn) pair to a non-negative
+ * <tt>int</tt>, with no boxing on any path.
+ *
+ * The pair is packed into one <tt>long</tt> (pid in the high word, vpn in the
+ * low word). Collisions are resolved by linear probing and removal uses
+ * backward shifting, so lookups stay short no matter how many pages have come
+ * and gone. The table doubles whenever it becomes half full.
+ *
+ * Not synchronized; callers hold their own lock.
+ */
+class PageKeyMap
+{
+    public static final int NOT_FOUND = -1;
+    private static final long EMPTY = -1L;
+
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+
+    PageKeyMap(int expectedSize)
+    {
+        int capacity = 16;
+        while (capacity < expectedSize * 2)
+        {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    public static long makeKey(int pid, int vpn)
+    {
+        return ((long) pid << 32) | (vpn & 0xFFFFFFFFL);
+    }
+
+    public static int pidFromKey(long key)
+    {
+        return (int) (key >>> 32);
+    }
+
+    public static int vpnFromKey(long key)
+    {
+        return (int) key;
+    }
+
+    public int get(int pid, int vpn)
+    {
+        return get(makeKey(pid, vpn));
+    }
+
+    public int get(long key)
+    {
+        int slot = findSlot(key);
+        return (keys[slot] == key) ? values[slot] : NOT_FOUND;
+    }
+
+    /**
+     * Map key to value.
+     *
+     * @return the value previously mapped to key, or <tt>NOT_FOUND</tt>.
+     */
+    public int put(long key, int value)
+    {
+        int slot = findSlot(key);
+        if (keys[slot] == key)
+        {
+            int previous = values[slot];
+            values[slot] = value;
+            return previous;
+        }
+
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size * 2 > keys.length)
+        {
+            rehash(keys.length << 1);
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * Remove the mapping for key.
+     *
+     * @return the value that was mapped to key, or <tt>NOT_FOUND</tt>.
+     */
+    public int remove(long key)
+    {
+        int slot = findSlot(key);
+        if (keys[slot] != key)
+        {
+            return NOT_FOUND;
+        }
+
+        int value = values[slot];
+        deleteSlot(slot);
+        return value;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    private void allocate(int capacity)
+    {
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    private void rehash(int capacity)
+    {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++)
+        {
+            if (oldKeys[i] != EMPTY)
+            {
+                int slot = findSlot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+                size++;
+            }
+        }
+    }
+
+    private int hash(long key)
+    {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    //slot holding key, or the empty slot where it would be inserted
+    private int findSlot(long key)
+    {
+        int slot = hash(key);
+        while (keys[slot] != EMPTY && keys[slot] != key)
+        {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    //backward-shift deletion keeps every probe chain intact without tombstones
+    private void deleteSlot(int slot)
+    {
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (keys[next] != EMPTY)
+        {
+            int home = hash(keys[next]);
+            //move next into the hole unless its home lies cyclically in (hole, next]
+            boolean stays = (hole <= next) ? (hole < home && home <= next) : (hole < home || home <= next);
+            if (!stays)
+            {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[hole] = EMPTY;
+        size--;
+    }
+}
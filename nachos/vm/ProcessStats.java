@@ -0,0 +1,80 @@
+package nachos.vm;
+
+import java.util.Collection;
+import java.util.TreeMap;
+
+/**
+ * A <tt>ProcessStats</tt>
+ *
+ * holds the paging statistics of one process: resident pages, working set,
+ * page faults and fault rate, and suspensions. <tt>WorkingSet</tt> fills
+ * them in; <tt>VMKernel</tt> prints them (debug flag <tt>v</tt>) when it
+ * terminates. The machine only counts page faults without a TLB, so
+ * the kernel's own page faults are counted here as well.
+ */
+public class ProcessStats
+{
+    private static TreeMap<Integer, ProcessStats> processes = new TreeMap<Integer, ProcessStats>();
+    private static int totalPageFaults = 0;
+
+    public final int pid;
+    public int residentPages = 0;
+    public int peakResidentPages = 0;
+    public int workingSetSize = 0;      //when last estimated
+    public int numPageFaults = 0;
+    public double faultRate = 0.0;      //per 1000 ticks of the process's lifetime
+    public int numSuspensions = 0;
+
+    private ProcessStats(int pid)
+    {
+        this.pid = pid;
+    }
+
+    /**
+     * Return the statistics of process <i>pid</i>, creating them the first
+     * time they are asked for.
+     */
+    public static ProcessStats get(int pid)
+    {
+        ProcessStats ps = processes.get(pid);
+        if (ps == null)
+        {
+            ps = new ProcessStats(pid);
+            processes.put(pid, ps);
+        }
+        return ps;
+    }
+
+    /**
+     * @return every process's statistics, by process ID.
+     */
+    public static Collection<ProcessStats> getAll()
+    {
+        return processes.values();
+    }
+
+    public void pageFault(long lifetime)
+    {
+        totalPageFaults++;
+        numPageFaults++;
+        faultRate = numPageFaults * 1000.0 / Math.max(1, lifetime);
+    }
+
+    public void pageMapped()
+    {
+        residentPages++;
+        peakResidentPages = Math.max(peakResidentPages, residentPages);
+    }
+
+    public static String getStatistics()
+    {
+        return String.format("Paging: page faults %d in %d processes", totalPageFaults, processes.size());
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("Process %d: resident pages %d (peak %d), working set %d, page faults %d, fault rate %.2f/1000 ticks, suspensions %d",
+                             pid, residentPages, peakResidentPages, workingSetSize, numPageFaults, faultRate, numSuspensions);
+    }
+}
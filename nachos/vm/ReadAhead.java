@@ -0,0 +1,99 @@
+package nachos.vm;
+
+import nachos.machine.Config;
+
+/**
+ * A <tt>ReadAhead</tt>
+ *
+ * keeps the read-ahead window of one process. A fault is sequential when it
+ * lands on the page right after the last one the previous fault brought in
+ * (including the pages prefetched with it). Every sequential fault doubles
+ * the window, up to <tt>VMKernel.readAheadMax</tt> pages; any other fault
+ * drops it back to <tt>VMKernel.readAheadMin</tt>. Setting the maximum to 0
+ * turns read-ahead off.
+ *
+ * Prefetched pages are only placed in free frames, never at the cost of an
+ * eviction. A prefetched page counts as a hit the first time a TLB miss
+ * finds it resident, and as a miss if it is evicted or unloaded before that.
+ */
+public class ReadAhead
+{
+    private static int minWindow;
+    private static int maxWindow;
+
+    private static int numPrefetched = 0;
+    private static int numHits = 0;
+    private static int numMisses = 0;
+
+    private int nextExpectedVpn;
+    private int window;
+
+    public ReadAhead()
+    {
+        nextExpectedVpn = -1;
+        window = minWindow;
+    }
+
+    public static void initialize()
+    {
+        maxWindow = Math.max(0, Config.getInteger("VMKernel.readAheadMax", 8));
+        minWindow = Math.min(maxWindow, Math.max(0, Config.getInteger("VMKernel.readAheadMin", 1)));
+    }
+
+    /**
+     * Record a fault on <i>vpn</i> and adapt the window.
+     *
+     * @return the number of pages after vpn to try to prefetch.
+     */
+    public int faultOn(int vpn)
+    {
+        if (vpn == nextExpectedVpn)
+        {
+            window = Math.min(maxWindow, Math.max(1, window * 2));
+        }
+        else
+        {
+            window = minWindow;
+        }
+        nextExpectedVpn = vpn + 1;
+        return window;
+    }
+
+    /**
+     * Record that the pages up to and including <i>lastVpn</i> are now
+     * resident, so the next sequential fault is expected right after it.
+     */
+    public void prefetchedThrough(int lastVpn)
+    {
+        nextExpectedVpn = lastVpn + 1;
+    }
+
+    public static void pagePrefetched()
+    {
+        numPrefetched++;
+    }
+
+    public static void prefetchHit(MemoryPage page)
+    {
+        if (page.prefetched)
+        {
+            page.prefetched = false;
+            numHits++;
+        }
+    }
+
+    public static void prefetchDropped(MemoryPage page)
+    {
+        if (page.prefetched)
+        {
+            page.prefetched = false;
+            numMisses++;
+        }
+    }
+
+    public static String getStatistics()
+    {
+        return String.format("Read-ahead: window %d..%d, pages prefetched %d, hits %d, misses %d",
+                             minWindow, maxWindow, numPrefetched, numHits, numMisses);
+    }
+}
@@ -1,6 +1,5 @@
 package nachos.vm;
 
-import java.util.Hashtable;
 import java.util.LinkedList;
 
 import nachos.machine.Machine;
@@ -8,6 +7,12 @@ import nachos.machine.Machine;
 /**
  * A <tt>ReplacementAlgorithm</tt>
  * Abstract class need to initiate with any Page replacement algorithm
+ *
+ * The base class hands out free frames first and only asks the policy for a
+ * victim once memory is full. It also counts faults, evictions and
+ * writebacks so every policy reports the same numbers. Which policy runs is
+ * picked by the <tt>VMKernel.replacementAlgorithm</tt> config key (a class
+ * name, like <tt>ThreadedKernel.scheduler</tt>).
  */
 public abstract class ReplacementAlgorithm
 {
@@ -25,28 +30,48 @@ public abstract class ReplacementAlgorithm
      * number of pages of physical memory in this simulated processor
      * ******************************************************
      * */
+    protected final int numFrames;
+    private final LinkedList<Integer> freeFrames = new LinkedList<Integer>();
+    private int numFaults;
+    private int numEvictions;
+    private int numWritebacks;
+
     public ReplacementAlgorithm()
     {
-
+        numFrames = Machine.processor().getNumPhysPages();
+        for (int i = 0; i < numFrames; i++)
+        {
+            freeFrames.add(i);
+        }
+        numFaults = 0;
+        numEvictions = 0;
+        numWritebacks = 0;
     }
 
-
-    /* this method will be defined by page replacement algorithm */
     /**
      * perform page replacement algorithm
      *
      * @param non
      * @return a physical page number that will replace
      */
-    abstract int findSwappedPage();
+    int findSwappedPage()
+    {
+        numFaults++;
+
+        if (!freeFrames.isEmpty())
+        {
+            return freeFrames.removeFirst();
+        }
+        return selectVictim();
+    }
 
+    /* this method will be defined by page replacement algorithm */
     /**
-     * get current page fault
+     * choose the frame to evict, called only when no frame is free
      *
-     * @param non
-     * @return int number of page faults
+     * @return a physical page number that is in use
      */
-    abstract int getNumberPageFault();
+    abstract int selectVictim();
 
     /**
      * get replacement algorithm name
@@ -56,6 +81,86 @@ public abstract class ReplacementAlgorithm
      */
     abstract String getAlgorithmName();
 
-    abstract void removePage(int ppn);
+    /**
+     * a new page now lives in <i>ppn</i> (after a fault or a prefetch)
+     */
+    void pageMapped(int ppn, MemoryPage page)
+    {
 
+    }
+
+    /**
+     * the page in <i>ppn</i> is gone for good and the frame is free again
+     */
+    void frameFreed(int ppn)
+    {
+
+    }
+
+    /**
+     * called by <tt>SwapPageController</tt> each time it evicts a page
+     *
+     * @param wroteBack <tt>true</tt> if the page had to be written to swap
+     */
+    void pageEvicted(MemoryPage victim, boolean wroteBack)
+    {
+        numEvictions++;
+        if (wroteBack)
+        {
+            numWritebacks++;
+        }
+    }
+
+    void removePage(int ppn)
+    {
+        frameFreed(ppn);
+        freeFrames.add((Integer) ppn);
+    }
+
+    /**
+     * take a frame that holds no page, without evicting anything and without
+     * counting a page fault (used to prefetch)
+     *
+     * @return a free physical page number, or -1 if every frame is in use
+     */
+    int takeFreeFrame()
+    {
+        if (freeFrames.isEmpty())
+        {
+            return -1;
+        }
+        return freeFrames.removeFirst();
+    }
+
+    /**
+     * get current page fault
+     *
+     * @param non
+     * @return int number of page faults
+     */
+    public int getNumberPageFault()
+    {
+        return numFaults;
+    }
+
+    public int getNumberEvictions()
+    {
+        return numEvictions;
+    }
+
+    public int getNumberWritebacks()
+    {
+        return numWritebacks;
+    }
+
+    public String getStatistics()
+    {
+        return String.format("Replacement (%s): page faults %d, evictions %d, writebacks %d",
+                             getAlgorithmName(), numFaults, numEvictions, numWritebacks);
+    }
+
+    protected static MemoryPage pageIn(int ppn)
+    {
+        return VMKernel.physicalDiskMap[ppn];
+    }
 }
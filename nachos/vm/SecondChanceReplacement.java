@@ -1,8 +1,5 @@
 package nachos.vm;
 
-import java.util.Hashtable;
-import java.util.LinkedList;
-
 import nachos.machine.Machine;
 
 /**
@@ -34,23 +31,13 @@ public class SecondChanceReplacement extends ReplacementAlgorithm
      * */
     private final String algorithmName = "Second Chance";
     private int current_frame;//pointer point to the location to be check
-    private int num_faults;
-    //private int used_frames;
     private int replace_frame;
-    private LinkedList<Integer> freeFrames = new LinkedList<Integer>();
 
     public SecondChanceReplacement()
     {
         super();
         current_frame = 0;
-        num_faults = 0;
-        //used_frames = 0;
         replace_frame = 0;
-
-        for (int i = 0; i < Machine.processor().getNumPhysPages(); i++)
-        {
-            freeFrames.add(i);
-        }
     }
 
     /**
@@ -59,55 +46,32 @@ public class SecondChanceReplacement extends ReplacementAlgorithm
      * @return
      */
     @Override
-    public int findSwappedPage()
+    int selectVictim()
     {
-        num_faults++;
-
-        if (!freeFrames.isEmpty())
+        /* evict page pointed to by current_frame and if only if its u-bit is false, replace with new page, and increment. */
+        while (VMKernel.physicalDiskMap[current_frame].entry.used)//search for used-bit contain 0
         {
-            replace_frame = freeFrames.removeFirst();
-
             //used bit set to true will happen in Processor.translate()
-            return replace_frame;
-        }
-        else
-        {
-            /* evict page pointed to by current_frame and if only if its u-bit is false, replace with new page, and increment. */
-            while (VMKernel.physicalDiskMap[current_frame].entry.used)//search for used-bit contain 0
-            {
-                //used bit set to true will happen in Processor.translate()
-                VMKernel.physicalDiskMap[current_frame].entry.used = false;
+            VMKernel.physicalDiskMap[current_frame].entry.used = false;
 
-                current_frame = ++current_frame % Machine.processor().getNumPhysPages();//advance next frame
-            }
-            //used bit set to true will happen in Processor.translate()
-            // remove existing page->frame mapping will happen in MemoryController swapIn
-            // set new page->frame mapping will happen in MemoryController swapIn
-            // update frame with the new page will happen in MemoryController swapIn
-
-            //after the frames are full check the replacement
-            /* advance current frame. */
-            replace_frame = current_frame;//we found which frame will be replaced
-            current_frame++;
-            current_frame %= Machine.processor().getNumPhysPages();
-
-            return replace_frame;
+            current_frame = ++current_frame % Machine.processor().getNumPhysPages();//advance next frame
         }
-    }
+        //used bit set to true will happen in Processor.translate()
+        // remove existing page->frame mapping will happen in MemoryController swapIn
+        // set new page->frame mapping will happen in MemoryController swapIn
+        // update frame with the new page will happen in MemoryController swapIn
 
-    /*returns the number of faults. */
-    public int getNumberPageFault()
-    {
-        return num_faults;
+        //after the frames are full check the replacement
+        /* advance current frame. */
+        replace_frame = current_frame;//we found which frame will be replaced
+        current_frame++;
+        current_frame %= Machine.processor().getNumPhysPages();
+
+        return replace_frame;
     }
 
     public String getAlgorithmName()
     {
         return algorithmName;
     }
-
-    public void removePage(int ppn)
-    {
-        freeFrames.add((Integer) ppn);
-    }
 }
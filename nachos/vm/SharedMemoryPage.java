@@ -0,0 +1,57 @@
+package nachos.vm;
+
+import java.util.ArrayList;
+
+import nachos.machine.TranslationEntry;
+
+/**
+ * A <tt>SharedMemoryPage</tt>
+ *
+ * is a frame holding a page of an executable that every process running that
+ * executable maps at the same vpn. It keeps the list of processes mapping it
+ * and counts as held by each of them; the owner reported by
+ * <tt>getOwningProcessId()</tt> is the process that loaded it.
+ */
+public class SharedMemoryPage extends MemoryPage
+{
+    private final String executable;
+    private final ArrayList<Integer> sharers = new ArrayList<Integer>();
+
+    public SharedMemoryPage(String executable, int processId, int virtualPageNumber, TranslationEntry entry)
+    {
+        super(processId, virtualPageNumber, entry);
+        this.executable = executable;
+        sharers.add(processId);
+    }
+
+    public String getExecutable()
+    {
+        return executable;
+    }
+
+    public void addSharer(int pid)
+    {
+        sharers.add(pid);
+    }
+
+    public void removeSharer(int pid)
+    {
+        sharers.remove((Integer) pid);
+    }
+
+    public int getNumSharers()
+    {
+        return sharers.size();
+    }
+
+    public ArrayList<Integer> getSharers()
+    {
+        return sharers;
+    }
+
+    @Override
+    public boolean holds(int pid, int vpn)
+    {
+        return entry.valid && getVirtualPageNumber() == vpn && sharers.contains(pid);
+    }
+}
@@ -0,0 +1,106 @@
+package nachos.vm;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import nachos.machine.Config;
+
+/**
+ * A <tt>SharedPageCache</tt>
+ *
+ * remembers which frame holds each page of each executable, so a process
+ * faulting on a COFF page that another process running the same executable
+ * already has in memory maps that frame instead of reading its own copy.
+ *
+ * Shared pages are mapped read-only. A write to a page of a writable section
+ * raises <tt>exceptionReadOnly</tt> and the writer gets a private copy (copy
+ * on write); a write to a read-only section is an error as before. A page is
+ * dropped from the cache when its frame is evicted or its last sharer exits.
+ *
+ * Turned on by <tt>VMKernel.sharePages</tt>.
+ */
+public class SharedPageCache
+{
+    private static boolean enabled;
+    private static HashMap<String, int[]> framesByExecutable = new HashMap<String, int[]>();
+    private static int numShared = 0;
+    private static int numCopied = 0;
+    private static int numTakenOver = 0;
+
+    private SharedPageCache()
+    {
+
+    }
+
+    public static void initialize()
+    {
+        enabled = Config.getBoolean("VMKernel.sharePages", true);
+    }
+
+    public static boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * @return the frame holding <i>vpn</i> of <i>executable</i>, or -1.
+     */
+    static int lookup(String executable, int vpn)
+    {
+        int[] frames = framesByExecutable.get(executable);
+        if (frames == null || vpn >= frames.length)
+        {
+            return -1;
+        }
+        return frames[vpn];
+    }
+
+    static void add(String executable, int numCodePages, int vpn, int ppn)
+    {
+        int[] frames = framesByExecutable.get(executable);
+        if (frames == null || frames.length < numCodePages)
+        {
+            int[] grown = new int[numCodePages];
+            Arrays.fill(grown, -1);
+            if (frames != null)
+            {
+                System.arraycopy(frames, 0, grown, 0, frames.length);
+            }
+            frames = grown;
+            framesByExecutable.put(executable, frames);
+        }
+        frames[vpn] = ppn;
+    }
+
+    static void remove(String executable, int vpn)
+    {
+        int[] frames = framesByExecutable.get(executable);
+        if (frames != null && vpn < frames.length)
+        {
+            frames[vpn] = -1;
+        }
+    }
+
+    static void pageShared()
+    {
+        numShared++;
+    }
+
+    static void pageCopied(boolean inPlace)
+    {
+        if (inPlace)
+        {
+            numTakenOver++;
+        }
+        else
+        {
+            numCopied++;
+        }
+    }
+
+    public static String getStatistics()
+    {
+        return String.format("Shared pages: %s, mapped without a new frame %d, copied on write %d, taken over on write %d",
+                             enabled ? "on" : "off", numShared, numCopied, numTakenOver);
+    }
+}
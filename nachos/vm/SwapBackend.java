@@ -0,0 +1,38 @@
+package nachos.vm;
+
+/**
+ * A <tt>SwapBackend</tt>
+ * Abstract class for the storage behind the swap file. The swap file is an
+ * array of page-sized frames; <tt>SwapPageManager</tt> decides which frame a
+ * page goes to and the backend only moves the bytes.
+ *
+ * Selected with the <tt>VMKernel.swapBackend</tt> config key:
+ * <tt>file</tt> (default) goes through <tt>OpenFile</tt>, <tt>mapped</tt>
+ * maps the swap file into memory.
+ */
+public abstract class SwapBackend
+{
+    public SwapBackend()
+    {
+
+    }
+
+    /**
+     * Copy one frame of the swap file into <i>buf</i>.
+     *
+     * @return the number of bytes read, or -1 on error.
+     */
+    abstract int read(int frameNumber, byte[] buf, int offset, int length);
+
+    /**
+     * Copy <i>length</i> bytes from <i>buf</i> into one frame of the swap file.
+     *
+     * @return the number of bytes written, or -1 on error.
+     */
+    abstract int write(int frameNumber, byte[] buf, int offset, int length);
+
+    /* release the backing storage and unlink the swap file */
+    abstract void close();
+
+    abstract String getBackendName();
+}
@@ -0,0 +1,196 @@
+package nachos.vm;
+
+import nachos.machine.Lib;
+
+/**
+ * A <tt>SwapFrameBitmap</tt> hands out page-sized frames of the swap file.
+ *
+ * One bit per frame, packed 64 to a <tt>long</tt>, so finding a free frame
+ * skips whole words at a time. Single frames are taken from the lowest free
+ * position (keeping the swap file compact), and <tt>allocateRun()</tt> finds
+ * the first gap large enough for a contiguous run. The bitmap grows on demand,
+ * which mirrors the swap file itself growing past its last frame.
+ */
+public class SwapFrameBitmap
+{
+    private static final int BITS_PER_WORD = 64;
+
+    private long[] words;
+    private int firstFreeWord;  //no word below this index has a clear bit
+    private int highWater;      //one past the highest frame ever handed out
+    private int numInUse;
+    private int peakInUse;
+
+    public SwapFrameBitmap(int initialFrames)
+    {
+        words = new long[Math.max(1, (initialFrames + BITS_PER_WORD - 1) / BITS_PER_WORD)];
+        firstFreeWord = 0;
+        highWater = 0;
+        numInUse = 0;
+        peakInUse = 0;
+    }
+
+    /**
+     * Allocate the lowest numbered free frame.
+     *
+     * @return the frame number.
+     */
+    public int allocate()
+    {
+        int w = firstFreeWord;
+        while (w < words.length && words[w] == -1L)
+        {
+            w++;
+        }
+        if (w == words.length)
+        {
+            grow(w + 1);
+        }
+        firstFreeWord = w;
+
+        int frame = w * BITS_PER_WORD + Long.numberOfTrailingZeros(~words[w]);
+        mark(frame, 1);
+        return frame;
+    }
+
+    /**
+     * Allocate <i>length</i> frames with consecutive numbers, using the first
+     * gap that is large enough.
+     *
+     * @param length the number of frames wanted.
+     * @return the first frame of the run.
+     */
+    public int allocateRun(int length)
+    {
+        Lib.assertTrue(length > 0);
+        if (length == 1)
+        {
+            return allocate();
+        }
+
+        int runStart = -1;
+        int runLength = 0;
+        int limit = words.length * BITS_PER_WORD;
+        for (int frame = firstFreeWord * BITS_PER_WORD; frame < limit; frame++)
+        {
+            if ((frame & (BITS_PER_WORD - 1)) == 0 && runLength == 0 && words[frame / BITS_PER_WORD] == -1L)
+            {
+                frame += BITS_PER_WORD - 1;     //whole word in use
+                continue;
+            }
+            if (isAllocated(frame))
+            {
+                runLength = 0;
+                continue;
+            }
+            if (runLength++ == 0)
+            {
+                runStart = frame;
+            }
+            if (runLength == length)
+            {
+                mark(runStart, length);
+                return runStart;
+            }
+        }
+
+        //no gap is big enough, extend past the end (possibly reusing a trailing gap)
+        if (runLength == 0)
+        {
+            runStart = limit;
+        }
+        grow((runStart + length + BITS_PER_WORD - 1) / BITS_PER_WORD);
+        mark(runStart, length);
+        return runStart;
+    }
+
+    public void free(int frame)
+    {
+        freeRun(frame, 1);
+    }
+
+    public void freeRun(int firstFrame, int length)
+    {
+        for (int frame = firstFrame; frame < firstFrame + length; frame++)
+        {
+            Lib.assertTrue(isAllocated(frame), "Freeing swap frame that is not in use: " + frame);
+            words[frame / BITS_PER_WORD] &= ~(1L << frame);
+        }
+        numInUse -= length;
+        firstFreeWord = Math.min(firstFreeWord, firstFrame / BITS_PER_WORD);
+    }
+
+    public boolean isAllocated(int frame)
+    {
+        if (frame < 0 || frame >= words.length * BITS_PER_WORD)
+        {
+            return false;
+        }
+        return (words[frame / BITS_PER_WORD] & (1L << frame)) != 0;
+    }
+
+    /** @return the number of frames currently handed out. */
+    public int getNumInUse()
+    {
+        return numInUse;
+    }
+
+    /** @return the largest number of frames ever handed out at once. */
+    public int getPeakInUse()
+    {
+        return peakInUse;
+    }
+
+    /** @return the number of frames the swap file has grown to. */
+    public int getNumFrames()
+    {
+        return highWater;
+    }
+
+    /**
+     * External fragmentation of the swap file: one minus the share of free
+     * frames (below the high water mark) that sit in the single largest gap.
+     * Zero means all free space is contiguous.
+     */
+    public double getFragmentation()
+    {
+        int free = highWater - numInUse;
+        if (free == 0)
+        {
+            return 0.0;
+        }
+
+        int largest = 0;
+        int run = 0;
+        for (int frame = 0; frame < highWater; frame++)
+        {
+            if (isAllocated(frame))
+            {
+                run = 0;
+            }
+            else if (++run > largest)
+            {
+                largest = run;
+            }
+        }
+        return 1.0 - (double) largest / free;
+    }
+
+    private void mark(int firstFrame, int length)
+    {
+        for (int frame = firstFrame; frame < firstFrame + length; frame++)
+        {
+            words[frame / BITS_PER_WORD] |= 1L << frame;
+        }
+        numInUse += length;
+        peakInUse = Math.max(peakInUse, numInUse);
+        highWater = Math.max(highWater, firstFrame + length);
+    }
+
+    private void grow(int minWords)
+    {
+        long[] bigger = new long[Math.max(minWords, words.length * 2)];
+        System.arraycopy(words, 0, bigger, 0, words.length);
+        words = bigger;
+    }
+}
@@ -1,5 +1,7 @@
 package nachos.vm;
 
+import nachos.machine.Config;
+import nachos.machine.Lib;
 import nachos.machine.Machine;
 import nachos.machine.Processor;
 import nachos.machine.TranslationEntry;
@@ -26,7 +28,8 @@ public class SwapPageController
     public static void initialize()
     {
         //initilize usedFrame
-        pageReplacementAlgorithm = new SecondChanceReplacement();
+        String algorithmName = Config.getString("VMKernel.replacementAlgorithm", "nachos.vm.SecondChanceReplacement");
+        pageReplacementAlgorithm = (ReplacementAlgorithm) Lib.constructObject(algorithmName);
     }
 
     /**
@@ -46,7 +49,7 @@ public class SwapPageController
             int vpn = swapOutPage.entry.vpn;
             VMKernel.printDebug("     ->Requires remove from table, vpn: " + vpn);
             swapOutPage.entry.valid = false;
-            InvertedPageTable.remove(swapOutPage.getOwningProcessId(), vpn);
+            unmapAll(swapOutPage, ppn);
             TLBController.invalidateTlb(swapOutPage);
 
             //if modified, update value at disk (ie. write() )
@@ -54,18 +57,31 @@ public class SwapPageController
             //Your page-replacement policy should not write any pages to the swap file...
             if (swapOutPage.entry.dirty)
             {
-                //update disk value with this entry
-                SwapPageManager.SwapPage swapPage = SwapPageManager.createSwapPage(swapOutPage);
-                boolean success = SwapPageManager.accessSwapFile(swapPage, ppn, true);
+                boolean success;
+                if (swapOutPage instanceof MappedMemoryPage)
+                {
+                    //a mapped page goes back to its file
+                    success = ((MappedMemoryPage) swapOutPage).getFile().writePage(vpn, ppn);
+                }
+                else
+                {
+                    //update disk value with this entry
+                    int swapFrame = SwapPageManager.createSwapPage(swapOutPage);
+                    success = SwapPageManager.accessSwapFile(swapFrame, ppn, true);
+                }
                 if (!success)
                 {
-      
-                    //write error and kill proceess
+                    //the frame holds the only good copy, so the page stays where it is
                     VMKernel.printDebug("Write error, unable to swap out!");
+                    swapOutPage.entry.valid = true;
+                    installPage(ppn, swapOutPage);
                     throw new IllegalArgumentException("write error!");
                 }
 
             }
+            pageReplacementAlgorithm.pageEvicted(swapOutPage, swapOutPage.entry.dirty);
+            WritebackDaemon.pageEvicted(swapOutPage, swapOutPage.entry.dirty);
+            ReadAhead.prefetchDropped(swapOutPage);
 
             /*
              swapOutPage.entry.valid = false;
@@ -78,6 +94,39 @@ public class SwapPageController
         }
     }
 
+    /**
+     * Choose a frame with the replacement algorithm and evict its page. A
+     * page still being written in the background is waited for first, which
+     * releases the page fault lock, so the frame is only used if it still
+     * holds the same page afterwards and is chosen again otherwise.
+     *
+     * @return the frame, free for a new page.
+     * @throws IllegalArgumentException if the victim could not be written
+     * out; it is then still mapped in its frame.
+     */
+    private static int evictFrame()
+    {
+        while (true)
+        {
+            int ppn = pageReplacementAlgorithm.findSwappedPage();
+            MemoryPage victim = VMKernel.physicalDiskMap[ppn];
+            if (victim == null || !victim.entry.valid || !waitForWriteback(victim)
+                || (VMKernel.physicalDiskMap[ppn] == victim && victim.entry.valid))
+            {
+                swapOut(ppn);
+                return ppn;
+            }
+            VMKernel.printDebug("     ppn " + ppn + " changed while its page was written back, choosing again");
+        }
+    }
+
+    //a failed background write marks the page dirty again, so it has to finish before the page goes
+    private static boolean waitForWriteback(MemoryPage page)
+    {
+        int swapFrame = SwapPageManager.getSwapFrame(page.getOwningProcessId(), page.getVirtualPageNumber());
+        return swapFrame != SwapPageManager.NO_SWAP_FRAME && WritebackDaemon.waitForFrame(swapFrame);
+    }
+
     /**
      * find a page (page replacement algorithm) that has to swap out from
      * physical memory and the missing page can swap in to physical memory
@@ -93,40 +142,388 @@ public class SwapPageController
     {
         VMKernel.printDebug("Beginning swap in sequence!!!");
         TranslationEntry entry;
-        int ppn = pageReplacementAlgorithm.findSwappedPage();
+
+        //the page may have been cleaned in the background and still be on its way out
+        int swapFrame = SwapPageManager.getSwapFrame(pid, vpn);
+        if (swapFrame != SwapPageManager.NO_SWAP_FRAME)
+        {
+            WritebackDaemon.waitForFrame(swapFrame);
+        }
+        else
+        {
+            //another process running the same program may have it in memory already
+            entry = attachSharedPage(pid, vpn, loader);
+            if (entry != null)
+            {
+                return entry;
+            }
+        }
+
+        int ppn;
         try
         {
-        swapOut(ppn);//if only if it's already in the memory
+            ppn = evictFrame();
         }
         catch (IllegalArgumentException e)
         {
             return null;
         }
         //now perform Swap In
-        
-        SwapPageManager.SwapPage swapPage = SwapPageManager.getSwapPage(pid, vpn);
-        // if the swapIn Page is on the disk
-        if (swapPage != null)
+        entry = readPage(pid, vpn, ppn, loader);
+        if (entry == null)
         {
-            entry = swapPage.getDiskPage().entry;
-            if (printSwapFlag)
+            removePage(ppn);
+            return null;
+        }
+
+        //found  a page by now, map virtual to physical
+        if (isShareable(vpn, swapFrame, loader))
+        {
+            mapSharedPage(pid, vpn, ppn, entry, loader);
+        }
+        else
+        {
+            mapPage(pid, vpn, ppn, entry);
+        }
+
+        //+++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+        VMKernel.printDebug("      ****END OF SWAPPING!");
+        if (printAllTables)
+        {
+
+            VMKernel.printDebug("      ****Printing the inverted page table");
+            VMKernel.printDebug(InvertedPageTable.getString());
+            VMKernel.printDebug("      ****Printing the physical page table");
+            for (int tempPpn = 0; tempPpn < VMKernel.physicalDiskMap.length; tempPpn++)
             {
-                VMKernel.printDebug("    Loading a swap entry-> VPN: " + entry.vpn + "PPN: "
-                                    + entry.ppn + " IsValid: " + entry.valid
-                                    + " Used: " + entry.used + " ReadOnly: "
-                                    + entry.readOnly + " Dirty: " + entry.dirty);
+                if (VMKernel.physicalDiskMap[tempPpn] == null)
+                {
+                    continue;
+                }
+
+                VMKernel.printDebug("      **vpn: " + VMKernel.physicalDiskMap[tempPpn].getVirtualPageNumber() + ", ppn: " + tempPpn);
+                VMKernel.printDebug(VMKernel.physicalDiskMap[tempPpn].entry);
+            }//+++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+        }
+        return entry;
+    }
+
+    /**
+     * Bring up to <i>count</i> pages following <i>vpn</i> into free frames,
+     * from the swap file or the COFF file, without evicting anything. Pages
+     * that are already resident are skipped; the first page that has neither
+     * source, or running out of free frames, ends the run.
+     *
+     * @return the last vpn that is resident after prefetching.
+     */
+    public static int prefetch(int pid, int vpn, int count, LoaderForCoff loader)
+    {
+        int lastVpn = vpn;
+        for (int next = vpn + 1; next <= vpn + count; next++)
+        {
+            if (InvertedPageTable.getPpn(pid, next) != -1)
+            {
+                lastVpn = next;
+                continue;
+            }
+
+            int swapFrame = SwapPageManager.getSwapFrame(pid, next);
+            if (swapFrame != SwapPageManager.NO_SWAP_FRAME ? SwapPageManager.isWriteInFlight(swapFrame) : !loader.isCodePage(next))
+            {
+                break;
             }
-            entry.valid = true;
-            entry.used = false;
-            entry.dirty = false;
+            if (swapFrame == SwapPageManager.NO_SWAP_FRAME && attachSharedPage(pid, next, loader) != null)
+            {
+                lastVpn = next;
+                continue;
+            }
+
+            int ppn = pageReplacementAlgorithm.takeFreeFrame();
+            if (ppn == -1)
+            {
+                break;
+            }
+
+            TranslationEntry entry = readPage(pid, next, ppn, loader);
+            if (entry == null)
+            {
+                pageReplacementAlgorithm.removePage(ppn);
+                break;
+            }
+
+            VMKernel.printDebug("    Prefetched vpn: " + next + " into ppn: " + ppn);
+            MemoryPage page = isShareable(next, swapFrame, loader)
+                              ? mapSharedPage(pid, next, ppn, entry, loader)
+                              : mapPage(pid, next, ppn, entry);
+            page.prefetched = true;
+            ReadAhead.pagePrefetched();
+            lastVpn = next;
+        }
+        return lastVpn;
+    }
+
+    private static MemoryPage mapPage(int pid, int vpn, int ppn, TranslationEntry entry)
+    {
+        return installPage(ppn, new MemoryPage(pid, vpn, entry));
+    }
+
+    private static MemoryPage installPage(int ppn, MemoryPage newPage)
+    {
+        int pid = newPage.getOwningProcessId();
+        InvertedPageTable.put(pid, newPage.getVirtualPageNumber(), ppn);//update ipt
+        VMKernel.physicalDiskMap[ppn] = newPage;//update Core Map of tracking all ppn
+        pageReplacementAlgorithm.pageMapped(ppn, newPage);
+        WorkingSet.pageMapped(pid);
+        return newPage;
+    }
+
+    /**
+     * Bring page <i>vpn</i> of a mapped file into memory, evicting a page if
+     * needed. The caller holds the page fault lock.
+     *
+     * @return the new entry, or <tt>null</tt> if the page could not be read.
+     */
+    public static TranslationEntry swapInMapped(int pid, int vpn, MappedFile file)
+    {
+        int ppn;
+        try
+        {
+            ppn = evictFrame();
+        }
+        catch (IllegalArgumentException e)
+        {
+            return null;
+        }
+
+        VMKernel.printDebug("    Reading mapped vpn: " + vpn + " into ppn: " + ppn);
+        if (!file.readPage(vpn, ppn))
+        {
+            VMKernel.printDebug("Read error, unable to read mapped page!");
+            removePage(ppn);
+            return null;
+        }
+
+        TranslationEntry entry = new TranslationEntry(vpn, ppn, true, false, false, false);
+        installPage(ppn, new MappedMemoryPage(file, pid, vpn, entry));
+        return entry;
+    }
+
+    /**
+     * Drop <i>pid</i>'s resident pages of <i>file</i>, writing the dirty ones
+     * back. The caller holds the page fault lock and has flushed the TLB.
+     *
+     * @return <tt>false</tt> if a write back failed.
+     */
+    public static boolean unmapFile(int pid, MappedFile file)
+    {
+        boolean success = true;
+        for (int vpn = file.getFirstVpn(); vpn < file.getFirstVpn() + file.getNumPages(); vpn++)
+        {
+            Integer ppn = InvertedPageTable.remove(pid, vpn);
+            if (ppn == null)
+            {
+                continue;
+            }
+
+            MemoryPage page = VMKernel.physicalDiskMap[ppn];
+            TLBController.invalidateTlb(page);
+            page.entry.valid = false;
+            if (page.entry.dirty && !file.writePage(vpn, ppn))
+            {
+                success = false;
+            }
+
+            WorkingSet.pageUnmapped(pid);
+            ReadAhead.prefetchDropped(page);
+            removePage(ppn);
+        }
+        return success;
+    }
+
+    //a page still as it is in the executable is shared rather than read into a private frame
+    private static boolean isShareable(int vpn, int swapFrame, LoaderForCoff loader)
+    {
+        return SharedPageCache.isEnabled() && swapFrame == SwapPageManager.NO_SWAP_FRAME && loader.isCodePage(vpn);
+    }
+
+    private static MemoryPage mapSharedPage(int pid, int vpn, int ppn, TranslationEntry entry, LoaderForCoff loader)
+    {
+        //writes have to fault so the writer can be given its own copy
+        entry.readOnly = true;
+        InvertedPageTable.putShared(pid, vpn, ppn);
+        SharedMemoryPage newPage = new SharedMemoryPage(loader.getExecutable(), pid, vpn, entry);
+        VMKernel.physicalDiskMap[ppn] = newPage;
+        SharedPageCache.add(loader.getExecutable(), loader.getNumCodePages(), vpn, ppn);
+        pageReplacementAlgorithm.pageMapped(ppn, newPage);
+        WorkingSet.pageMapped(pid);
+        return newPage;
+    }
+
+    /**
+     * Map the copy of <i>vpn</i> another process running the same program
+     * has in memory, if there is one.
+     *
+     * @return its entry, or <tt>null</tt> if the page has to be read in.
+     */
+    private static TranslationEntry attachSharedPage(int pid, int vpn, LoaderForCoff loader)
+    {
+        if (!isShareable(vpn, SwapPageManager.NO_SWAP_FRAME, loader))
+        {
+            return null;
+        }
+        int ppn = SharedPageCache.lookup(loader.getExecutable(), vpn);
+        if (ppn == -1)
+        {
+            return null;
+        }
+
+        VMKernel.printDebug("    Sharing vpn: " + vpn + " of " + loader.getExecutable() + " in ppn: " + ppn);
+        SharedMemoryPage page = (SharedMemoryPage) VMKernel.physicalDiskMap[ppn];
+        page.addSharer(pid);
+        InvertedPageTable.putShared(pid, vpn, ppn);
+        WorkingSet.pageMapped(pid);
+        SharedPageCache.pageShared();
+        return page.entry;
+    }
+
+    //drop every mapping of the page in ppn, which is being evicted
+    private static void unmapAll(MemoryPage page, int ppn)
+    {
+        int vpn = page.getVirtualPageNumber();
+        if (page instanceof SharedMemoryPage)
+        {
+            SharedMemoryPage sharedPage = (SharedMemoryPage) page;
+            for (int pid : sharedPage.getSharers())
+            {
+                InvertedPageTable.remove(pid, vpn);
+                WorkingSet.pageUnmapped(pid);
+            }
+            SharedPageCache.remove(sharedPage.getExecutable(), vpn);
+            InvertedPageTable.unshare(ppn);
+        }
+        else
+        {
+            InvertedPageTable.remove(page.getOwningProcessId(), vpn);
+            WorkingSet.pageUnmapped(page.getOwningProcessId());
+        }
+    }
+
+    /**
+     * <i>pid</i> no longer maps the page in <i>ppn</i> (it has exited). The
+     * caller has removed its inverted page table entry.
+     *
+     * @return <tt>true</tt> if the page is shared and other processes still
+     * map it, so the frame must not be freed.
+     */
+    public static boolean releaseSharedPage(int pid, int ppn)
+    {
+        MemoryPage page = VMKernel.physicalDiskMap[ppn];
+        if (!(page instanceof SharedMemoryPage))
+        {
+            return false;
+        }
+
+        SharedMemoryPage sharedPage = (SharedMemoryPage) page;
+        sharedPage.removeSharer(pid);
+        if (sharedPage.getNumSharers() > 0)
+        {
+            return true;
+        }
+        SharedPageCache.remove(sharedPage.getExecutable(), sharedPage.getVirtualPageNumber());
+        InvertedPageTable.unshare(ppn);
+        return false;
+    }
+
+    /**
+     * Give <i>pid</i> a private, writable copy of the shared page <i>vpn</i>.
+     * If no other process maps the page any more the frame is simply taken
+     * over. The caller holds the page fault lock.
+     *
+     * @return the new entry, or <tt>null</tt> if the page is no longer shared
+     * by the time we get here (it was evicted or already copied), in which
+     * case the retried write faults it in again.
+     */
+    public static TranslationEntry copyOnWrite(int pid, int vpn, LoaderForCoff loader)
+    {
+        int ppn = InvertedPageTable.getPpn(pid, vpn);
+        if (ppn == -1 || !(VMKernel.physicalDiskMap[ppn] instanceof SharedMemoryPage))
+        {
+            return null;
+        }
+
+        SharedMemoryPage sharedPage = (SharedMemoryPage) VMKernel.physicalDiskMap[ppn];
+        ReadAhead.prefetchHit(sharedPage);
+        TranslationEntry entry;
+        if (sharedPage.getNumSharers() == 1)
+        {
+            VMKernel.printDebug("    Taking over shared vpn: " + vpn + " in ppn: " + ppn);
+            SharedPageCache.remove(sharedPage.getExecutable(), vpn);
+            InvertedPageTable.unshare(ppn);
+            InvertedPageTable.put(pid, vpn, ppn);
+            //the write that faulted is about to happen, so it is dirty from the start
+            entry = new TranslationEntry(vpn, ppn, true, false, true, true);
+            //same frame, so the replacement policy keeps whatever it knows about it
+            VMKernel.physicalDiskMap[ppn] = new MemoryPage(pid, vpn, entry);
+            SharedPageCache.pageCopied(true);
+            return entry;
+        }
+
+        sharedPage.removeSharer(pid);
+        InvertedPageTable.remove(pid, vpn);
+        WorkingSet.pageUnmapped(pid);
+
+        int newPpn;
+        try
+        {
+            newPpn = evictFrame();
+        }
+        catch (IllegalArgumentException e)
+        {
+            return null;
+        }
+
+        VMKernel.printDebug("    Copying shared vpn: " + vpn + " from ppn: " + ppn + " to ppn: " + newPpn);
+        if (VMKernel.physicalDiskMap[ppn] == sharedPage && sharedPage.entry.valid)
+        {
+            byte[] memory = Machine.processor().getMemory();
+            System.arraycopy(memory, Processor.makeAddress(ppn, 0), memory, Processor.makeAddress(newPpn, 0), Processor.pageSize);
+            Machine.processor().invalidateDecodedPage(newPpn);
+        }
+        else
+        {
+            //the shared copy was the page evicted to make room, the executable still has it
+            loader.loadData(pid, vpn, newPpn);
+        }
+
+        entry = new TranslationEntry(vpn, newPpn, true, false, true, true);
+        mapPage(pid, vpn, newPpn, entry);
+        SharedPageCache.pageCopied(false);
+        return entry;
+    }
+
+    public static String getReplacementStatistics()
+    {
+        return pageReplacementAlgorithm.getStatistics();
+    }
+
+    //fill ppn with vpn's contents from the swap file if it has been swapped out, otherwise from the coff
+    private static TranslationEntry readPage(int pid, int vpn, int ppn, LoaderForCoff loader)
+    {
+        TranslationEntry entry;
+        int swapFrame = SwapPageManager.getSwapFrame(pid, vpn);
+        // if the swapIn Page is on the disk
+        if (swapFrame != SwapPageManager.NO_SWAP_FRAME)
+        {
+            //the page lands in a new frame, so build a fresh entry rather than reusing the stale one
+            entry = new TranslationEntry(vpn, ppn, true, SwapPageManager.isReadOnly(swapFrame), false, false);
             if (printSwapFlag)
             {
-                VMKernel.printDebug("    Rewrite entry-> VPN: " + entry.vpn + "PPN: "
+                VMKernel.printDebug("    Loading a swap entry-> VPN: " + entry.vpn + "PPN: "
                                     + entry.ppn + " IsValid: " + entry.valid
                                     + " Used: " + entry.used + " ReadOnly: "
                                     + entry.readOnly + " Dirty: " + entry.dirty);
             }
-            boolean success = SwapPageManager.accessSwapFile(swapPage,ppn, false);
+            boolean success = SwapPageManager.accessSwapFile(swapFrame, ppn, false);
             if (!success)
             {
                 // read error and kill proceess
@@ -138,32 +535,38 @@ public class SwapPageController
         {
             entry = loader.loadData(pid, vpn, ppn);
         }
+        return entry;
+    }
 
-        //found  a page by now, map virtual to physical
-        InvertedPageTable.put(pid, vpn, ppn);//update ipt
-        MemoryPage newPage = new MemoryPage(pid, vpn, entry);
-        VMKernel.physicalDiskMap[ppn] = newPage;//update Core Map of tracking all ppn
-
-        //+++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
-        VMKernel.printDebug("      ****END OF SWAPPING!");
-        if (printAllTables)
+    /**
+     * Free the frames and swap slots of pages <tt>0</tt> to
+     * <i>numPages</i>-1 of <i>pid</i>, which is exiting. The caller holds
+     * the page fault lock and has flushed the TLB. A swap slot still being
+     * written in the background is freed by <tt>SwapPageManager</tt> once
+     * the write is done.
+     */
+    public static void unloadPages(int pid, int numPages)
+    {
+        for (int vpn = 0; vpn < numPages; vpn++)
         {
-
-            VMKernel.printDebug("      ****Printing the inverted page table");
-            VMKernel.printDebug(InvertedPageTable.getString());
-            VMKernel.printDebug("      ****Printing the physical page table");
-            for (int tempPpn = 0; tempPpn < VMKernel.physicalDiskMap.length; tempPpn++)
+            Integer ppn = InvertedPageTable.remove(pid, vpn);
+            if (ppn != null)
             {
-                if (VMKernel.physicalDiskMap[tempPpn] == null)
+                WorkingSet.pageUnmapped(pid);
+
+                //a shared page stays in memory while other processes still map it
+                if (!releaseSharedPage(pid, ppn))
                 {
-                    continue;
+                    VMKernel.physicalDiskMap[ppn].entry.valid = false;
+                    ReadAhead.prefetchDropped(VMKernel.physicalDiskMap[ppn]);
+
+                    VMKernel.printDebug("Removing for reuse a ppn: " + ppn);
+                    removePage(ppn);
                 }
+            }
 
-                VMKernel.printDebug("      **vpn: " + VMKernel.physicalDiskMap[tempPpn].getVirtualPageNumber() + ", ppn: " + tempPpn);
-                VMKernel.printDebug(VMKernel.physicalDiskMap[tempPpn].entry);
-            }//+++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+            SwapPageManager.removeSwapPage(pid, vpn);
         }
-        return entry;
     }
 
     public static void removePage(int ppn)
@@ -1,23 +1,24 @@
 package nachos.vm;
 
-import java.util.ArrayList;
-import java.util.Stack;
+import java.util.BitSet;
 
+import nachos.machine.Config;
 import nachos.machine.Lib;
 import nachos.machine.Machine;
-import nachos.machine.OpenFile;
 import nachos.machine.Processor;
 import nachos.threads.Semaphore;
-import nachos.threads.ThreadedKernel;
 
 public class SwapPageManager
 {
     //Maintains a single global swap file, will be used by filesystem
     public static final String TEST_FILE = "Proj3SwapTestFile";
+    public static final int NO_SWAP_FRAME = PageKeyMap.NOT_FOUND;
 
-    private static int FREE_FRAMES_CREATTED = 0;
-    private static OpenFile OPEN_TEST_FILE;
-    private static Stack<Integer> RECYCLED_FRAMES;
+    private static SwapBackend BACKEND;
+    private static SwapFrameBitmap SWAP_FRAMES;
+    private static BitSet READ_ONLY_FRAMES;
+    private static BitSet IN_FLIGHT_FRAMES;     //frames with a background write outstanding
+    private static BitSet FREE_AFTER_WRITE;     //in flight frames whose page has gone away
 
     private SwapPageManager()
     {
@@ -26,35 +27,52 @@ public class SwapPageManager
 
     public static void initialize()
     {
-        //create new file and write null chars into it (clearing any prev data)
-        OPEN_TEST_FILE = ThreadedKernel.fileSystem.open(TEST_FILE, true);
-        byte[] zeroBuffer = new byte[Machine.processor().pageSize * Machine.processor().getNumPhysPages()];
-        OPEN_TEST_FILE.write(zeroBuffer, 0, zeroBuffer.length);
-        RECYCLED_FRAMES = new Stack<Integer>();
+        int numPhysPages = Machine.processor().getNumPhysPages();
+        String backendName = Config.getString("VMKernel.swapBackend", "file");
+        if (backendName.equals("mapped"))
+        {
+            BACKEND = MappedSwapBackend.create(TEST_FILE, Config.getInteger("VMKernel.swapFrames", numPhysPages));
+            if (BACKEND == null)
+            {
+                VMKernel.printDebug("Unable to map swap file, falling back to file backend");
+            }
+        }
+        else
+        {
+            Lib.assertTrue(backendName.equals("file"), "Unknown swap backend: " + backendName);
+        }
+        if (BACKEND == null)
+        {
+            BACKEND = new FileSwapBackend(TEST_FILE, numPhysPages);
+        }
+
+        SWAP_FRAMES = new SwapFrameBitmap(Machine.processor().getNumPhysPages());
+        READ_ONLY_FRAMES = new BitSet();
+        IN_FLIGHT_FRAMES = new BitSet();
+        FREE_AFTER_WRITE = new BitSet();
         SwapPageTable.initialize();
     }
 
-    public static boolean accessSwapFile(SwapPage page, int ppn, boolean write)
+    public static boolean accessSwapFile(int frameNumber, int ppn, boolean write)
     {
-        int frameNumber = page.frameNumber; 
         int numberOfSucessfulBytes;
         byte[] memory = Machine.processor().getMemory();
-        int index = frameNumber * Processor.pageSize;
         int bufferOffset = Processor.makeAddress(ppn, 0);
-        if (frameNumber > FREE_FRAMES_CREATTED)
+        if (!SWAP_FRAMES.isAllocated(frameNumber))
         {
             return false;
         }
-        
+
         if (write)
         {
-           numberOfSucessfulBytes = OPEN_TEST_FILE.write(index, memory, bufferOffset, Processor.pageSize);
+           numberOfSucessfulBytes = BACKEND.write(frameNumber, memory, bufferOffset, Processor.pageSize);
         }
         else
         {
-          numberOfSucessfulBytes  = OPEN_TEST_FILE.read(index, memory, bufferOffset, Processor.pageSize);
+          numberOfSucessfulBytes  = BACKEND.read(frameNumber, memory, bufferOffset, Processor.pageSize);
+          Machine.processor().invalidateDecodedPage(ppn);
         }
-        
+
         //some perro checking after access file
         if (-1 == numberOfSucessfulBytes)
         {
@@ -67,60 +85,147 @@ public class SwapPageManager
         }
     }
 
-    // allocate a new SwapPage when Memory page first time swap out 
-    public static SwapPage createSwapPage(MemoryPage memoryPage)
+    // allocate a swap frame when Memory page first time swap out, returns the frame number
+    public static int createSwapPage(MemoryPage memoryPage)
+    {
+        int pid = memoryPage.getOwningProcessId();
+        int vpn = memoryPage.getVirtualPageNumber();
+        int frameNumber = getSwapFrame(pid, vpn);
+
+        //a background write still targets the old frame, so leave it to finish and move on
+        if (NO_SWAP_FRAME != frameNumber && IN_FLIGHT_FRAMES.get(frameNumber))
+        {
+            FREE_AFTER_WRITE.set(frameNumber);
+            frameNumber = NO_SWAP_FRAME;
+        }
+
+        //allocate a new one if there is no frame for the vpn yet
+        if (NO_SWAP_FRAME == frameNumber)
+        {
+            frameNumber = SWAP_FRAMES.allocate();
+            SwapPageTable.put(pid, vpn, frameNumber);
+        }
+
+        READ_ONLY_FRAMES.set(frameNumber, memoryPage.entry.readOnly);
+        return frameNumber;
+    }
+
+    /**
+     * Make sure each of the first <i>count</i> pages has a swap frame, giving
+     * the ones that have none a single contiguous run so they can be written
+     * together.
+     *
+     * @param frames receives the swap frame of each page.
+     */
+    public static void assignSwapFrames(MemoryPage[] pages, int count, int[] frames)
     {
-        SwapPage swapPage = getSwapPage(memoryPage.getOwningProcessId(), memoryPage.entry.vpn);
-        
-        //allocate a new one if there is matching for the vpn
-        if (null == swapPage)
+        int missing = 0;
+        for (int i = 0; i < count; i++)
         {
-            int newFrame;
-            if (RECYCLED_FRAMES.isEmpty())
+            frames[i] = getSwapFrame(pages[i].getOwningProcessId(), pages[i].getVirtualPageNumber());
+            if (NO_SWAP_FRAME == frames[i])
             {
-                newFrame = FREE_FRAMES_CREATTED++;
+                missing++;
             }
-            else
+        }
+
+        int nextFrame = (missing > 0) ? SWAP_FRAMES.allocateRun(missing) : NO_SWAP_FRAME;
+        for (int i = 0; i < count; i++)
+        {
+            if (NO_SWAP_FRAME == frames[i])
             {
-                newFrame = RECYCLED_FRAMES.pop();
+                frames[i] = nextFrame++;
+                SwapPageTable.put(pages[i].getOwningProcessId(), pages[i].getVirtualPageNumber(), frames[i]);
             }
-            
-            swapPage = new SwapPage(memoryPage, newFrame);
-            SwapPageTable.put(memoryPage.getOwningProcessId(), memoryPage.entry.vpn, swapPage);
+            READ_ONLY_FRAMES.set(frames[i], pages[i].entry.readOnly);
         }
-        
-        return swapPage;
     }
 
-    // return the SwapPage referenced by pid and vpn in disk 
-    public static SwapPage getSwapPage(int pid, int vpn)
+    /**
+     * Write <i>numFrames</i> consecutive swap frames starting at
+     * <i>firstFrame</i> from <i>buf</i> in a single access.
+     */
+    public static boolean writeSwapFrames(int firstFrame, byte[] buf, int offset, int numFrames)
+    {
+        int length = numFrames * Processor.pageSize;
+        return BACKEND.write(firstFrame, buf, offset, length) == length;
+    }
+
+    public static boolean isWriteInFlight(int frameNumber)
+    {
+        return IN_FLIGHT_FRAMES.get(frameNumber);
+    }
+
+    public static void setWriteInFlight(int frameNumber, boolean inFlight)
+    {
+        IN_FLIGHT_FRAMES.set(frameNumber, inFlight);
+        if (!inFlight && FREE_AFTER_WRITE.get(frameNumber))
+        {
+            FREE_AFTER_WRITE.clear(frameNumber);
+            SWAP_FRAMES.free(frameNumber);
+        }
+    }
+
+    // return the swap frame holding pid and vpn on disk, or NO_SWAP_FRAME
+    public static int getSwapFrame(int pid, int vpn)
     {
         return SwapPageTable.get(pid, vpn);
     }
 
+    public static boolean isReadOnly(int frameNumber)
+    {
+        return READ_ONLY_FRAMES.get(frameNumber);
+    }
+
     public static void removeSwapPage(int pid, int vpn)
     {
-        SwapPage swapPage = SwapPageTable.remove(pid, vpn);
-        if (swapPage != null)
+        int frameNumber = SwapPageTable.remove(pid, vpn);
+        if (frameNumber != NO_SWAP_FRAME)
         {
-            //we can reuse the frame number from swap pages no longer used
-            RECYCLED_FRAMES.push(swapPage.frameNumber);
+            //we can reuse the frame number from swap pages no longer used,
+            //but not while a background write to it is still outstanding
+            if (IN_FLIGHT_FRAMES.get(frameNumber))
+            {
+                FREE_AFTER_WRITE.set(frameNumber);
+            }
+            else
+            {
+                SWAP_FRAMES.free(frameNumber);
+            }
         }
     }
-    
+
+    public static int getSlotsInUse()
+    {
+        return SWAP_FRAMES.getNumInUse();
+    }
+
+    public static int getPeakSlotsInUse()
+    {
+        return SWAP_FRAMES.getPeakInUse();
+    }
+
+    public static double getFragmentation()
+    {
+        return SWAP_FRAMES.getFragmentation();
+    }
+
+    public static String getStatistics()
+    {
+        return String.format("Swap (" + BACKEND.getBackendName() + "): slots in use %d, peak %d, file frames %d, fragmentation %.2f",
+                             getSlotsInUse(), getPeakSlotsInUse(), SWAP_FRAMES.getNumFrames(), getFragmentation());
+    }
+
         // close and unlink the file
     public static void closeTestFile()
     {
-        OPEN_TEST_FILE.close();
-        ThreadedKernel.fileSystem.remove(TEST_FILE);
+        BACKEND.close();
     }
 
     //might as well make this private since we have getters
     private static class SwapPageTable
     {
-        private static ArrayList<Integer> pidArray;
-        private static ArrayList<Integer> vpnArray;
-        private static ArrayList<SwapPage> swapPageArray;
+        private static PageKeyMap frameIndex;
         private static Semaphore sem;
 
         private SwapPageTable()
@@ -130,98 +235,33 @@ public class SwapPageManager
 
         private static void initialize()
         {
-            pidArray = new ArrayList<Integer>();
-            vpnArray = new ArrayList<Integer>();
-            swapPageArray = new ArrayList<SwapPage>();
+            frameIndex = new PageKeyMap(Machine.processor().getNumPhysPages());
             sem = new Semaphore(1);
 
         }
 
         //can replace pages that are used already
-        private static boolean put(Integer pid, Integer vpn, SwapPage sp)
+        private static boolean put(int pid, int vpn, int frameNumber)
         {
-            int size = vpnArray.size();
-            Lib.assertTrue(pidArray.size() == size && size == swapPageArray.size());
             sem.P();
-
-            for (int i = 0; i < size; i++)
-            {
-                if ((pidArray.get(i) == pid) && (vpnArray.get(i) == vpn))
-                {
-
-                    swapPageArray.set(i, sp);
-                    sem.V();
-                    return true;
-                }
-
-            }
-
-            pidArray.add(pid);
-            vpnArray.add(vpn);
-            swapPageArray.add(sp);
+            int previous = frameIndex.put(PageKeyMap.makeKey(pid, vpn), frameNumber);
             sem.V();
-            return false;
+            return previous != NO_SWAP_FRAME;
         }
 
-        private static SwapPage get(Integer pid, Integer vpn)
+        private static int get(int pid, int vpn)
         {
-            int size = vpnArray.size();
-            Lib.assertTrue(pidArray.size() == size && size == swapPageArray.size());
             sem.P();
-            for (int i = 0; i < size; i++)
-            {
-                if ((pidArray.get(i) == pid) && (vpnArray.get(i) == vpn))
-                {
-                    sem.V();
-                    return swapPageArray.get(i);
-                }
-
-            }
+            int frameNumber = frameIndex.get(pid, vpn);
             sem.V();
-            return null;
+            return frameNumber;
         }
 
-        private static SwapPage remove(Integer pid, Integer vpn)
+        private static int remove(int pid, int vpn)
         {
-            int size = vpnArray.size();
-            Lib.assertTrue(pidArray.size() == size && size == swapPageArray.size());
             sem.P();
-            for (int i = 0; i < size; i++)
-            {
-                if ((pidArray.get(i) == pid) && (vpnArray.get(i) == vpn))
-                {
-                    SwapPage temp = swapPageArray.get(i);
-                    pidArray.remove(i);
-                    vpnArray.remove(i);
-                    swapPageArray.remove(i);
-                    sem.V();
-                    return temp;
-                }
-
-            }
+            int frameNumber = frameIndex.remove(PageKeyMap.makeKey(pid, vpn));
             sem.V();
-            return null;
-        }
-    }
-
-    public static class SwapPage
-    {
-        final int frameNumber;
-        final MemoryPage memoryPage;
-
-        public SwapPage(MemoryPage memoryPage, int frameNumber)
-        {
-            this.memoryPage = memoryPage;
-            this.frameNumber = frameNumber;
-        }
-
-        public MemoryPage getDiskPage()
-        {
-            return memoryPage;
-        }
-
-        public int getFrameNumber()
-        {
             return frameNumber;
         }
     }
@@ -1,53 +1,69 @@
 package nachos.vm;
 
-import java.util.Stack;
 import nachos.machine.Lib;
 import nachos.machine.Machine;
 import nachos.machine.TranslationEntry;
 
 /**
+ * TLB slots are kept on a doubly linked recency list held in two arrays, so
+ * picking and touching a slot is constant time. Invalidated slots are moved
+ * to the least recently used end, so the head of the list is always the slot
+ * to fill next: a free one if there is any, the LRU one otherwise.
  *
  * @author derrick
  */
 public class TLBController
 {
     private static final boolean DBG = false;
-    private static final Stack<Integer> LRU = new Stack<Integer>();
+    private static int[] older;     //towards the head
+    private static int[] newer;     //towards the tail
+    private static int lruHead;
+    private static int mruTail;
 
     private TLBController()
     {
 
     }
 
-    public static void addTlb(TranslationEntry entry)
+    public static void initialize()
     {
-        //Search for invalidEntries and replace first one that is found
-        for (int i = 0; i < Machine.processor().getTLBSize(); i++)
+        int tlbSize = Machine.processor().getTLBSize();
+        Lib.assertTrue(tlbSize > 0);
+        older = new int[tlbSize];
+        newer = new int[tlbSize];
+        for (int i = 0; i < tlbSize; i++)
         {
-            if (false == Machine.processor().readTLBEntry(i).valid)
-            {
-                printDebug(String.format("    Writing to TLB Entry: %d vpn: %d, ppn: %d", i, entry.vpn, entry.ppn));
-                Machine.processor().writeTLBEntry(i, entry);
-                //flush(i);
-                LRU.remove((Integer) i);
-                LRU.push(i);
-                return;
-            }
+            older[i] = i - 1;
+            newer[i] = (i + 1 < tlbSize) ? i + 1 : -1;
         }
+        lruHead = 0;
+        mruTail = tlbSize - 1;
+    }
 
-        Lib.assertTrue(LRU.size() <= Machine.processor().getTLBSize());
-
-        //If table is full..
-        int victim = LRU.firstElement();
-        LRU.remove((Integer) victim);
-        LRU.push(victim);
-        printDebug(String.format("    No free TLB reuse random TLB Entry: %d vpn: %d, ppn: %d", victim, entry.vpn, entry.ppn));
-        flushTlbEntry(victim);
+    public static void addTlb(TranslationEntry entry)
+    {
+        int victim = lruHead;
+        TranslationEntry replaced = Machine.processor().readTLBEntry(victim);
+        if (replaced.valid)
+        {
+            printDebug(String.format("    No free TLB reuse LRU TLB Entry: %d vpn: %d, ppn: %d", victim, entry.vpn, entry.ppn));
+            flushTlbEntry(replaced);
+        }
+        else
+        {
+            printDebug(String.format("    Writing to TLB Entry: %d vpn: %d, ppn: %d", victim, entry.vpn, entry.ppn));
+        }
         Machine.processor().writeTLBEntry(victim, entry);
-
+        moveToTail(victim);
     }
 
     public static TranslationEntry useTlbEntry(int vpn)
+    {
+        return useTlbEntry(vpn, false);
+    }
+
+    //same as useTlbEntry(vpn), but a kernel write through the entry also marks the page dirty
+    public static TranslationEntry useTlbEntry(int vpn, boolean write)
     {
         for (int i = 0; i < Machine.processor().getTLBSize(); i++)
         {
@@ -56,6 +72,10 @@ public class TLBController
             {
                 //If entry in memory is valid, set to used
                 entry.used = true;
+                if (write && !entry.readOnly)
+                {
+                    entry.dirty = true;
+                }
                 Machine.processor().writeTLBEntry(i, entry);
                 return entry;
             }
@@ -75,6 +95,23 @@ public class TLBController
                 printDebug("Invalidating entry for  vpn:" + temp.vpn + ", ppn: " + temp.ppn);
                 temp.valid = false;
                 Machine.processor().writeTLBEntry(i, pageToInvalidate.entry);
+                moveToHead(i);
+            }
+        }
+    }
+
+    //drop the running process's translation for vpn, keeping its bits in the core map
+    public static void invalidateVpn(int vpn)
+    {
+        for (int i = 0; i < Machine.processor().getTLBSize(); i++)
+        {
+            TranslationEntry entry = Machine.processor().readTLBEntry(i);
+            if (entry.valid && entry.vpn == vpn)
+            {
+                flushTlbEntry(i);
+                entry.valid = false;
+                Machine.processor().writeTLBEntry(i, entry);
+                moveToHead(i);
             }
         }
     }
@@ -113,10 +150,53 @@ public class TLBController
         {
             printDebug("    Flushing to ppn map:");
             printDebug(currentEntry);
+            //a reference the timer already moved to the core map is not lost
+            currentEntry.used |= VMKernel.physicalDiskMap[currentEntry.ppn].entry.used;
             VMKernel.physicalDiskMap[currentEntry.ppn].setTranslationEntry(currentEntry);
         }
     }
 
+    /**
+     * Flush the TLB to the core map, remember its valid translations in
+     * <i>snapshot</i> (least recently used first) and invalidate it for the
+     * next process.
+     */
+    public static void saveTlb(TLBSnapshot snapshot)
+    {
+        snapshot.clear();
+        //every slot ends up invalid, so the list order need not be kept up
+        for (int i = lruHead; i != -1; i = newer[i])
+        {
+            TranslationEntry entry = Machine.processor().readTLBEntry(i);
+            if (entry.valid)
+            {
+                //the core map keeps the entry it is given, so flush a copy of its own
+                flushTlbEntry(i);
+                snapshot.add(entry.vpn, entry.ppn);
+                entry.valid = false;
+                Machine.processor().writeTLBEntry(i, entry);
+            }
+        }
+    }
+
+    /**
+     * Load the translations in <i>snapshot</i> that are still current back
+     * into the TLB, taking their bits from the core map.
+     */
+    public static void restoreTlb(TLBSnapshot snapshot)
+    {
+        int restored = 0;
+        for (int j = 0; j < snapshot.size; j++)
+        {
+            if (snapshot.isCurrent(j))
+            {
+                addTlb(VMKernel.physicalDiskMap[snapshot.ppns[j]].entry);
+                restored++;
+            }
+        }
+        printDebug("Restored " + restored + " of " + snapshot.size + " TLB entries for process " + snapshot.pid);
+    }
+
     //clear all TLB entries by invalidating all entries
     public static void invalidateAllTlbEntry()
     {
@@ -150,6 +230,52 @@ public class TLBController
         }//+++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
     }
 
+    private static void unlink(int i)
+    {
+        if (older[i] != -1)
+        {
+            newer[older[i]] = newer[i];
+        }
+        else
+        {
+            lruHead = newer[i];
+        }
+        if (newer[i] != -1)
+        {
+            older[newer[i]] = older[i];
+        }
+        else
+        {
+            mruTail = older[i];
+        }
+    }
+
+    private static void moveToTail(int i)
+    {
+        if (i == mruTail)
+        {
+            return;
+        }
+        unlink(i);
+        older[i] = mruTail;
+        newer[i] = -1;
+        newer[mruTail] = i;
+        mruTail = i;
+    }
+
+    private static void moveToHead(int i)
+    {
+        if (i == lruHead)
+        {
+            return;
+        }
+        unlink(i);
+        newer[i] = lruHead;
+        older[i] = -1;
+        older[lruHead] = i;
+        lruHead = i;
+    }
+
     private static void printDebug(String message)
     {
         if (DBG)
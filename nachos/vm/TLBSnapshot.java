@@ -0,0 +1,48 @@
+package nachos.vm;
+
+/**
+ * A <tt>TLBSnapshot</tt>
+ *
+ * holds the translations one process had in the hardware TLB when it was
+ * switched out, tagged with its pid, so they can be put back when it is
+ * switched in again instead of starting from an empty TLB.
+ *
+ * Only (vpn, ppn) is kept; the used and dirty bits go to the core map when
+ * the snapshot is taken. On restore each translation is checked against the
+ * core map, so a page that was evicted or moved in the meantime is simply
+ * dropped and nothing has to chase snapshots when a page is evicted.
+ */
+public class TLBSnapshot
+{
+    final int pid;
+    final int[] vpns;
+    final int[] ppns;
+    int size;
+
+    public TLBSnapshot(int pid, int tlbSize)
+    {
+        this.pid = pid;
+        vpns = new int[tlbSize];
+        ppns = new int[tlbSize];
+        size = 0;
+    }
+
+    void clear()
+    {
+        size = 0;
+    }
+
+    void add(int vpn, int ppn)
+    {
+        vpns[size] = vpn;
+        ppns[size] = ppn;
+        size++;
+    }
+
+    //the page in ppn still holds vpn of this process
+    boolean isCurrent(int i)
+    {
+        MemoryPage page = VMKernel.physicalDiskMap[ppns[i]];
+        return page != null && page.holds(pid, vpns[i]);
+    }
+}
@@ -0,0 +1,91 @@
+package nachos.vm;
+
+import nachos.machine.Config;
+import nachos.machine.Lib;
+import nachos.machine.TranslationEntry;
+
+/**
+ * A <tt>TranslationCache</tt>
+ *
+ * is a per-process, direct-mapped cache of vpn -> ppn translations that sits
+ * between the hardware TLB and the inverted page table. A TLB miss that hits
+ * here is refilled without taking the inverted page table's semaphore, whose
+ * interrupt toggling is most of the kernel time of a miss.
+ *
+ * Nothing is invalidated when a page is evicted; a hit is checked against the
+ * core map instead, and a frame that no longer holds the page counts as a
+ * miss. The size is set by <tt>VMKernel.translationCacheSize</tt> (a power of
+ * two, 0 disables the cache).
+ */
+public class TranslationCache
+{
+    private static int cacheSize;
+    private static int numHits = 0;
+    private static int numMisses = 0;
+
+    private final int pid;
+    private final int[] vpns;
+    private final int[] ppns;
+
+    public TranslationCache(int pid)
+    {
+        this.pid = pid;
+        vpns = new int[cacheSize];
+        ppns = new int[cacheSize];
+        for (int i = 0; i < cacheSize; i++)
+        {
+            ppns[i] = -1;
+        }
+    }
+
+    public static void initialize()
+    {
+        cacheSize = Config.getInteger("VMKernel.translationCacheSize", 64);
+        Lib.assertTrue(cacheSize >= 0 && (cacheSize & (cacheSize - 1)) == 0);
+    }
+
+    /**
+     * @return the core map entry for <i>vpn</i>, or <tt>null</tt> if it is
+     * not cached or its frame has been reused.
+     */
+    public TranslationEntry lookup(int vpn)
+    {
+        if (cacheSize == 0)
+        {
+            return null;
+        }
+
+        int slot = vpn & (cacheSize - 1);
+        if (vpns[slot] == vpn && ppns[slot] != -1)
+        {
+            MemoryPage page = VMKernel.physicalDiskMap[ppns[slot]];
+            if (page != null && page.holds(pid, vpn))
+            {
+                numHits++;
+                ReadAhead.prefetchHit(page);
+                return page.entry;
+            }
+            ppns[slot] = -1;
+        }
+        numMisses++;
+        return null;
+    }
+
+    public void insert(int vpn, int ppn)
+    {
+        if (cacheSize == 0)
+        {
+            return;
+        }
+
+        int slot = vpn & (cacheSize - 1);
+        vpns[slot] = vpn;
+        ppns[slot] = ppn;
+    }
+
+    public static String getStatistics()
+    {
+        return String.format("Translation cache: %d entries per process, hits %d, misses %d",
+                             cacheSize, numHits, numMisses);
+    }
+}
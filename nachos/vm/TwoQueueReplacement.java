@@ -0,0 +1,84 @@
+package nachos.vm;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashSet;
+
+/**
+ * A <tt>TwoQueueReplacement</tt>
+ * The full 2Q algorithm. A page faulted in for the first time goes on A1in, a
+ * FIFO capped at a quarter of memory. Pages that fall off A1in are evicted
+ * and their (pid, vpn) is remembered on A1out, a ghost FIFO of half the size
+ * of memory. A page that faults again while it is remembered has proved it
+ * is reused, so it goes to Am, which is managed as a clock on the used bits
+ * (our stand-in for LRU). One-shot sequential scans therefore pass through
+ * A1in without pushing the hot pages out of Am.
+ */
+public class TwoQueueReplacement extends ReplacementAlgorithm
+{
+    private final String algorithmName = "2Q";
+    private final int maxA1in;
+    private final int maxA1out;
+    private final ArrayDeque<Integer> a1in = new ArrayDeque<Integer>();
+    private final LinkedHashSet<Long> a1out = new LinkedHashSet<Long>();
+    private final ArrayDeque<Integer> am = new ArrayDeque<Integer>();
+
+    public TwoQueueReplacement()
+    {
+        super();
+        maxA1in = Math.max(1, numFrames / 4);
+        maxA1out = Math.max(1, numFrames / 2);
+    }
+
+    @Override
+    int selectVictim()
+    {
+        if (a1in.size() > maxA1in || am.isEmpty())
+        {
+            int ppn = a1in.removeFirst();
+            MemoryPage page = pageIn(ppn);
+            a1out.add(PageKeyMap.makeKey(page.getOwningProcessId(), page.getVirtualPageNumber()));
+            while (a1out.size() > maxA1out)
+            {
+                a1out.remove(a1out.iterator().next());
+            }
+            return ppn;
+        }
+
+        while (true)
+        {
+            int ppn = am.removeFirst();
+            MemoryPage page = pageIn(ppn);
+            if (!page.entry.used)
+            {
+                return ppn;
+            }
+            page.entry.used = false;
+            am.addLast(ppn);
+        }
+    }
+
+    @Override
+    void pageMapped(int ppn, MemoryPage page)
+    {
+        if (a1out.remove(PageKeyMap.makeKey(page.getOwningProcessId(), page.getVirtualPageNumber())))
+        {
+            am.addLast(ppn);
+        }
+        else
+        {
+            a1in.addLast(ppn);
+        }
+    }
+
+    @Override
+    void frameFreed(int ppn)
+    {
+        a1in.remove((Integer) ppn);
+        am.remove((Integer) ppn);
+    }
+
+    public String getAlgorithmName()
+    {
+        return algorithmName;
+    }
+}
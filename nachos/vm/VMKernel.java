@@ -44,9 +44,15 @@ public class VMKernel extends UserKernel
         super.initialize(args);
         physicalDiskMap = new MemoryPage[Machine.processor().getNumPhysPages()];
         InvertedPageTable.initialize();
+        TLBController.initialize();
         pageFaultLock = new Lock();
         SwapPageController.initialize();
         SwapPageManager.initialize();
+        WritebackDaemon.initialize(pageFaultLock);
+        ReadAhead.initialize();
+        WorkingSet.initialize();
+        TranslationCache.initialize();
+        SharedPageCache.initialize();
     }
 
     /**
@@ -74,8 +80,18 @@ public class VMKernel extends UserKernel
     public void terminate()
     {
         SwapPageManager.closeTestFile();
-        //	printDebug(memoryController.pageReplacementAlgorithm.getAlgorithmName()+
-        //			"Total Page Fault: "+memoryController.pageReplacementAlgorithm.getNumberPageFault());
+        printDebug(SwapPageController.getReplacementStatistics());
+        printDebug(SwapPageManager.getStatistics());
+        printDebug(WritebackDaemon.getStatistics());
+        printDebug(ReadAhead.getStatistics());
+        printDebug(TranslationCache.getStatistics());
+        printDebug(SharedPageCache.getStatistics());
+        printDebug(MappedFile.getStatistics());
+        printDebug(ProcessStats.getStatistics());
+        for (ProcessStats ps : ProcessStats.getAll())
+        {
+            printDebug(ps.toString());
+        }
 
         super.terminate();
     }
@@ -83,11 +99,11 @@ public class VMKernel extends UserKernel
     public static TranslationEntry searchInvertedPageTable(int processId, int virtualPageNumber)
     {
         //Determine PPN from invertedPageTable
-        Integer ppn = InvertedPageTable.get(processId, virtualPageNumber);
-        printDebug(String.format(" Searching Inverted Page Table: Process: %d vpn: %d ppn: %d", processId, virtualPageNumber, ppn));
+        int ppn = InvertedPageTable.getPpn(processId, virtualPageNumber);
+        printDebug(" Searching Inverted Page Table: Process: " + processId + " vpn: " + virtualPageNumber + " ppn: " + ppn);
 
         //search physical memory map using hashkey
-        if (ppn != null)
+        if (ppn != -1)
         {
             TranslationEntry temp = physicalDiskMap[ppn].entry;
             if (temp == null)
@@ -104,6 +120,7 @@ public class VMKernel extends UserKernel
             else
             {
                 printDebug("    this ppn is a okay, returning translation entry");
+                ReadAhead.prefetchHit(physicalDiskMap[ppn]);
                 return temp;
             }
         }
@@ -121,9 +138,10 @@ public class VMKernel extends UserKernel
      * @param pid
      * @param vpn missing virtual page number
      * @param loader
+     * @param readAhead the faulting process's read-ahead window
      * @return
      */
-    public static TranslationEntry handlePageFault(int pid, int vpn, LoaderForCoff loader)
+    public static TranslationEntry handlePageFault(int pid, int vpn, LoaderForCoff loader, ReadAhead readAhead)
     {
         printDebug(UThread.currentThread().getName() + ": handleTLB miss exception, page fault: " + vpn);
         /*
@@ -139,11 +157,86 @@ public class VMKernel extends UserKernel
         TLBController.flushAllTlb();
         TranslationEntry missedTranslatedEntry = SwapPageController.swapIn(pid, vpn, loader);
 
+        //sequential faults pull in the pages that follow while there are free frames for them
+        int window = readAhead.faultOn(vpn);
+        if (missedTranslatedEntry != null && window > 0)
+        {
+            readAhead.prefetchedThrough(SwapPageController.prefetch(pid, vpn, window, loader));
+        }
+
         pageFaultLock.release();
 
         return missedTranslatedEntry;
     }
 
+    /**
+     * Give <i>pid</i> its own copy of the shared page <i>vpn</i> it has
+     * tried to write.
+     *
+     * @return the entry of the copy, or <tt>null</tt> if the page is no
+     * longer shared and the write should just be retried.
+     */
+    public static TranslationEntry handleCopyOnWrite(int pid, int vpn, LoaderForCoff loader)
+    {
+        printDebug(UThread.currentThread().getName() + ": copy on write: " + vpn);
+        pageFaultLock.acquire();
+
+        TLBController.flushAllTlb();
+        TranslationEntry entry = SwapPageController.copyOnWrite(pid, vpn, loader);
+
+        pageFaultLock.release();
+        return entry;
+    }
+
+    /**
+     * Handle a page fault on page <i>vpn</i> of a file <i>pid</i> has
+     * mapped.
+     *
+     * @return the entry of the page, or <tt>null</tt> if it could not be read.
+     */
+    public static TranslationEntry handleMappedPageFault(int pid, int vpn, MappedFile file)
+    {
+        printDebug(UThread.currentThread().getName() + ": mapped page fault: " + vpn);
+        pageFaultLock.acquire();
+
+        TLBController.flushAllTlb();
+        TranslationEntry entry = SwapPageController.swapInMapped(pid, vpn, file);
+
+        pageFaultLock.release();
+        return entry;
+    }
+
+    /**
+     * Free the frames and swap slots of pages <tt>0</tt> to
+     * <i>numPages</i>-1 of <i>pid</i>, which is exiting.
+     */
+    public static void unloadProcess(int pid, int numPages)
+    {
+        pageFaultLock.acquire();
+
+        TLBController.invalidateAllTlbEntry();
+        SwapPageController.unloadPages(pid, numPages);
+
+        pageFaultLock.release();
+    }
+
+    /**
+     * Remove <i>pid</i>'s mapping of <i>file</i>, writing its dirty pages back
+     * to the file.
+     *
+     * @return <tt>false</tt> if a page could not be written back.
+     */
+    public static boolean unmapFile(int pid, MappedFile file)
+    {
+        pageFaultLock.acquire();
+
+        TLBController.flushAllTlb();
+        boolean success = SwapPageController.unmapFile(pid, file);
+
+        pageFaultLock.release();
+        return success;
+    }
+
     public static void printDebug(String message)
     {
         Lib.debug(dbgVM, message);
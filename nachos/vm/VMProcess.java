@@ -5,16 +5,27 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Iterator;
+import java.util.LinkedList;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
  */
 public class VMProcess extends UserProcess
 {
     private LoaderForCoff loader;
+    private ReadAhead readAhead;
+    private WorkingSet workingSet;
+    private TranslationCache translationCache;
+    private final TLBSnapshot tlbSnapshot;
+    private String executableName;
+    private int programPages;               //pages of the program itself, mapped files go above and are not counted in numPages
+    private final LinkedList<MappedFile> mappedFiles = new LinkedList<MappedFile>();
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';
     private static final boolean PRINT_UNLOAD_MESSAGES = false;
+    private static final int MAX_VIRTUAL_PAGES = 1 << 16;
 
     /**
      * Allocate a new process.
@@ -22,6 +33,18 @@ public class VMProcess extends UserProcess
     public VMProcess()
     {
         super();
+        tlbSnapshot = new TLBSnapshot(super.getProcessID(), Machine.processor().getTLBSize());
+    }
+
+    /**
+     * Remember which program this process runs, so its pages can be shared
+     * with other processes running it, then load it as usual.
+     */
+    @Override
+    public boolean execute(String name, String[] args)
+    {
+        executableName = name;
+        return super.execute(name, args);
     }
 
     /**
@@ -31,8 +54,8 @@ public class VMProcess extends UserProcess
     @Override
     public void saveState()
     {
-        VMKernel.printDebug("Clearing the TLB!");
-        TLBController.invalidateAllTlbEntry();
+        VMKernel.printDebug("Saving the TLB!");
+        TLBController.saveTlb(tlbSnapshot);
     }
 
     /**
@@ -43,6 +66,7 @@ public class VMProcess extends UserProcess
     public void restoreState()
     {
         //super.restoreState();         //using TLB, so can't
+        TLBController.restoreTlb(tlbSnapshot);
     }
 
     /**
@@ -54,7 +78,11 @@ public class VMProcess extends UserProcess
     @Override
     protected boolean loadSections()
     {
-        loader = new LoaderForCoff(coff);
+        loader = new LoaderForCoff(coff, executableName);
+        readAhead = new ReadAhead();
+        workingSet = new WorkingSet(super.getProcessID(), numPages);
+        translationCache = new TranslationCache(super.getProcessID());
+        programPages = numPages;
 
         //	return super.loadSections();
         return true;
@@ -69,7 +97,6 @@ public class VMProcess extends UserProcess
         coff.close();
         loader = null;
 
-        TLBController.invalidateAllTlbEntry();
         if (PRINT_UNLOAD_MESSAGES)
         {
             //+++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
@@ -90,22 +117,21 @@ public class VMProcess extends UserProcess
             }//+++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
         }
 
-        //Clear out Inverted Page table
-        for (int vpn = 0; vpn < numPages; vpn++)
+        //mappings normally went when their files were closed, any left are written back here
+        for (Iterator<MappedFile> i = mappedFiles.iterator(); i.hasNext();)
         {
-            Integer ppn = InvertedPageTable.remove(super.getProcessID(), vpn);
-
-            if (ppn != null)
+            MappedFile mappedFile = i.next();
+            i.remove();
+            if (!VMKernel.unmapFile(super.getProcessID(), mappedFile))
             {
-                VMKernel.physicalDiskMap[ppn].entry.valid = false;
-                
-                VMKernel.printDebug("Removing for reuse a ppn: " + ppn);
-                SwapPageController.removePage(ppn);
+                VMKernel.printDebug("munmap: write back failed for fd " + mappedFile.getFd());
             }
-
-            SwapPageManager.removeSwapPage(super.getProcessID(), vpn);
         }
 
+        //Clear out Inverted Page table, under the page fault lock like every other change to it
+        VMKernel.unloadProcess(super.getProcessID(), programPages);
+        workingSet.exited();
+
         if (PRINT_UNLOAD_MESSAGES)
         {
             //+++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
@@ -143,6 +169,12 @@ public class VMProcess extends UserProcess
             case Processor.exceptionTLBMiss:
                 handleTLBMiss(Machine.processor().pageFromAddress(Machine.processor().readRegister(Processor.regBadVAddr)));
                 break;
+            case Processor.exceptionReadOnly:
+                if (!handleCopyOnWrite(Machine.processor().pageFromAddress(Machine.processor().readRegister(Processor.regBadVAddr))))
+                {
+                    super.handleException(cause);
+                }
+                break;
             default:
                 super.handleException(cause);
                 break;
@@ -159,22 +191,42 @@ public class VMProcess extends UserProcess
 
         VMKernel.printDebug("=================================");
         VMKernel.printDebug("TLB Miss! Process: " + super.getProcessID() + " On Virtual Page " + missedVirtualPage);
+        workingSet.waitIfSuspended();
             //TLBController.printTLBTable();
 
-        //Retrieve Physical translation and resume process?
-        TranslationEntry translatedEntry = VMKernel.searchInvertedPageTable(super.getProcessID(), missedVirtualPage);
+        //Retrieve Physical translation, from this process's cache first and then the inverted page table
+        TranslationEntry translatedEntry = translationCache.lookup(missedVirtualPage);
+        if (translatedEntry != null)
+        {
+            TLBController.addTlb(translatedEntry);
+            return;
+        }
+        translatedEntry = VMKernel.searchInvertedPageTable(super.getProcessID(), missedVirtualPage);
 
-        if (translatedEntry == null)
+        MappedFile mappedFile = (translatedEntry == null) ? findMapping(missedVirtualPage) : null;
+        if (mappedFile != null)
+        {
+            workingSet.pageFault(missedVirtualPage);
+            translatedEntry = VMKernel.handleMappedPageFault(super.getProcessID(), missedVirtualPage, mappedFile);
+        }
+        else if (translatedEntry == null && missedVirtualPage >= programPages)
+        {
+            //between the program and a mapping, or past the last one: nothing is there
+            VMKernel.printDebug("Fault on unmapped vpn " + missedVirtualPage);
+        }
+        else if (translatedEntry == null)
         {
             //PAGEFAULT! handle page fault accordingly
             //Kernel handle the page fault
             //1. Keep tracking current page is used to find unreferenced pages to throw out on page faults
-            translatedEntry = VMKernel.handlePageFault(super.getProcessID(), missedVirtualPage, loader);
+            workingSet.pageFault(missedVirtualPage);
+            translatedEntry = VMKernel.handlePageFault(super.getProcessID(), missedVirtualPage, loader, readAhead);
         }
 
         //Write out translation to TLB
         if (translatedEntry != null)
         {
+            translationCache.insert(missedVirtualPage, translatedEntry.ppn);
             TLBController.addTlb(translatedEntry);
         }
         else
@@ -186,6 +238,165 @@ public class VMProcess extends UserProcess
         //TLBController.printTLBTable();
     }
 
+    /**
+     * Handle a write to a read-only page. A page of a writable section is
+     * only read-only because it is shared, so the writer gets its own copy
+     * and the write is retried.
+     *
+     * @return <tt>false</tt> if the page really is read-only.
+     */
+    private boolean handleCopyOnWrite(int writtenVirtualPage)
+    {
+        if (!loader.isWritablePage(writtenVirtualPage))
+        {
+            return false;
+        }
+
+        //drop the shared translation, the copy (or the retried write's TLB miss) replaces it
+        TLBController.invalidateVpn(writtenVirtualPage);
+        TranslationEntry copiedEntry = VMKernel.handleCopyOnWrite(super.getProcessID(), writtenVirtualPage, loader);
+        if (copiedEntry != null)
+        {
+            translationCache.insert(writtenVirtualPage, copiedEntry.ppn);
+            TLBController.addTlb(copiedEntry);
+        }
+        return true;
+    }
+
+    @Override
+    public int handleSyscall(SysCall syscall, int a0, int a1, int a2, int a3)
+    {
+        switch (syscall)
+        {
+            case MMAP:
+                return handleMmap(a0, a1);
+            case READ:
+            case WRITE:
+                //a mapped file is only accessed through its mapping until it is closed
+                if (findMappingOf(a0) != null)
+                {
+                    return -1;
+                }
+                break;
+            default:
+                break;
+        }
+        return super.handleSyscall(syscall, a0, a1, a2, a3);
+    }
+
+    /**
+     * Map the file open on <i>fd</i> into memory at <i>address</i>, which
+     * must be page aligned and above the program. The pages are read from the
+     * file when first touched, and dirty pages are written back to the file
+     * when they are evicted or the file is closed.
+     *
+     * @return the length of the file, or -1 on error.
+     */
+    private int handleMmap(int fd, int address)
+    {
+        OpenFile file = getOpenFile(fd);
+        if (file == null || findMappingOf(fd) != null)
+        {
+            VMKernel.printDebug("mmap: bad file descriptor " + fd);
+            return -1;
+        }
+        if (address < 0 || Processor.offsetFromAddress(address) != 0)
+        {
+            VMKernel.printDebug("mmap: unaligned address " + address);
+            return -1;
+        }
+
+        int length = file.length();
+        if (length < 0)
+        {
+            return -1;
+        }
+
+        int firstVpn = Processor.pageFromAddress(address);
+        MappedFile mappedFile = new MappedFile(fd, file, firstVpn, length);
+        int lastVpn = firstVpn + mappedFile.getNumPages();
+        if (firstVpn < programPages || lastVpn > MAX_VIRTUAL_PAGES)
+        {
+            VMKernel.printDebug("mmap: address " + address + " is not free");
+            return -1;
+        }
+        for (MappedFile other : mappedFiles)
+        {
+            if (other.overlaps(firstVpn, mappedFile.getNumPages()))
+            {
+                VMKernel.printDebug("mmap: address " + address + " is already mapped");
+                return -1;
+            }
+        }
+
+        mappedFiles.add(mappedFile);
+        workingSet.grow(lastVpn);
+        VMKernel.printDebug("mmap: fd " + fd + " at vpn " + firstVpn + ", " + length + " bytes");
+        return length;
+    }
+
+    /**
+     * Closing a mapped file removes the mapping, after its dirty pages are
+     * written back.
+     */
+    @Override
+    protected void fileClosing(int fd, OpenFile file)
+    {
+        MappedFile mappedFile = findMappingOf(fd);
+        if (mappedFile != null)
+        {
+            mappedFiles.remove(mappedFile);
+            if (!VMKernel.unmapFile(super.getProcessID(), mappedFile))
+            {
+                VMKernel.printDebug("munmap: write back failed for fd " + fd);
+            }
+        }
+    }
+
+    //a page of the program or of a mapped file
+    private boolean isValidPage(int vpn)
+    {
+        return (vpn >= 0 && vpn < programPages) || findMapping(vpn) != null;
+    }
+
+    //the mapping holding vpn, or null
+    private MappedFile findMapping(int vpn)
+    {
+        for (Iterator<MappedFile> i = mappedFiles.iterator(); i.hasNext();)
+        {
+            MappedFile mappedFile = i.next();
+            if (mappedFile.contains(vpn))
+            {
+                return mappedFile;
+            }
+        }
+        return null;
+    }
+
+    //the mapping of the file open on fd, or null
+    private MappedFile findMappingOf(int fd)
+    {
+        for (Iterator<MappedFile> i = mappedFiles.iterator(); i.hasNext();)
+        {
+            MappedFile mappedFile = i.next();
+            if (mappedFile.getFd() == fd)
+            {
+                return mappedFile;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Pages can be evicted while a file operation blocks, so <tt>read()</tt>
+     * and <tt>write()</tt> go through the bounce buffer instead.
+     */
+    @Override
+    protected boolean canTransferDirect()
+    {
+        return false;
+    }
+
     @Override
     protected int virtualMemoryCommandHandler(int vaddr, byte[] data, int offset, int length, boolean readCommand)
     {
@@ -197,34 +408,48 @@ public class VMProcess extends UserProcess
 
         byte[] memory = Machine.processor().getMemory();
 
-        // for now, just assume that virtual addresses equal physical addresses
-        if (vaddr < 0 || vaddr >= memory.length)
+        //the address space is paged, so bound the access by the pages it has rather than physical memory
+        if (vaddr < 0)
         {
             return 0;
         }
 
-        for (int i = firstPageToXfer; i <= lastPageToXfer; i++)
+        for (int i = firstPageToXfer; i <= lastPageToXfer && isValidPage(i); i++)
         {
             int startVAddr = Processor.makeAddress(i, 0);
             int endVAddr = startVAddr + (pageSize - 1);
             int pageOffsetStart;
             int pageOffsetEnd;
 
-            TranslationEntry te = TLBController.useTlbEntry(i);
+            TranslationEntry te = TLBController.useTlbEntry(i, !readCommand);
             if (te == null)
             {
                 handleTLBMiss(i);
-                te = TLBController.useTlbEntry(i);
+                te = TLBController.useTlbEntry(i, !readCommand);
             }
 
-            if (te.valid != true)
+            //the page could not be brought in, so the transfer stops short
+            if (te == null || te.valid != true)
             {
                 break;
             }
             if (!readCommand && te.readOnly)
             {
-                //Do not initiate write command if page is Read Only
-                break;
+                //a shared page gets copied first, a truly read-only one is not written
+                if (!handleCopyOnWrite(i))
+                {
+                    break;
+                }
+                te = TLBController.useTlbEntry(i, true);
+                if (te == null)
+                {
+                    handleTLBMiss(i);
+                    te = TLBController.useTlbEntry(i, true);
+                }
+                if (te == null || te.readOnly)
+                {
+                    break;
+                }
             }
 
             //copies entire page
@@ -239,7 +464,7 @@ public class VMProcess extends UserProcess
                     pageOffsetStart = vaddr - startVAddr;
                 }
 
-                pageOffsetEnd = pageSize - 1;
+                pageOffsetEnd = Math.min(pageSize, (vaddr + length) - startVAddr);
             }
             //copy begin of page to not quite the end
             else if (vaddr <= startVAddr && vaddr + length < endVAddr)
@@ -261,6 +486,7 @@ public class VMProcess extends UserProcess
             else
             {
                 System.arraycopy(data, offset + amount, memory, Machine.processor().makeAddress(te.ppn, pageOffsetStart), pageOffsetEnd - pageOffsetStart);
+                Machine.processor().invalidateDecodedPage(te.ppn);
             }
 
             amount += (pageOffsetEnd - pageOffsetStart);
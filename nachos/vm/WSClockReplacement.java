@@ -0,0 +1,99 @@
+package nachos.vm;
+
+import nachos.machine.Config;
+import nachos.machine.Machine;
+
+/**
+ * A <tt>WSClockReplacement</tt>
+ * The WSClock algorithm. Each frame remembers the last tick (from
+ * <tt>Machine.timer()</tt>) at which the hand found it referenced. A page
+ * whose last use is more than <tt>VMKernel.workingSetWindow</tt> ticks old has
+ * left the working set. The hand evicts the first such page that is clean;
+ * old dirty pages are passed over and the writeback daemon is asked to clean
+ * them, so a later sweep finds them clean.
+ *
+ * If a full sweep finds nothing, the oldest clean page is taken, or failing
+ * that the oldest page of all.
+ */
+public class WSClockReplacement extends ReplacementAlgorithm
+{
+    private final String algorithmName = "WSClock";
+    private final long window;
+    private final long[] lastUse;
+    private int hand;
+
+    public WSClockReplacement()
+    {
+        super();
+        window = Config.getInteger("VMKernel.workingSetWindow", 50000);
+        lastUse = new long[numFrames];
+        hand = 0;
+    }
+
+    @Override
+    int selectVictim()
+    {
+        long now = Machine.timer().getTime();
+        int oldestClean = -1;
+        int oldest = -1;
+        boolean needsCleaning = false;
+
+        for (int i = 0; i < numFrames; i++)
+        {
+            int ppn = hand;
+            hand = (hand + 1) % numFrames;
+
+            MemoryPage page = pageIn(ppn);
+            if (page.entry.used)
+            {
+                page.entry.used = false;
+                lastUse[ppn] = now;
+                continue;
+            }
+
+            boolean clean = !page.entry.dirty;
+            if (now - lastUse[ppn] > window)
+            {
+                if (clean)
+                {
+                    return ppn;
+                }
+                needsCleaning = true;
+            }
+
+            if (clean && (oldestClean == -1 || lastUse[ppn] < lastUse[oldestClean]))
+            {
+                oldestClean = ppn;
+            }
+            if (oldest == -1 || lastUse[ppn] < lastUse[oldest])
+            {
+                oldest = ppn;
+            }
+        }
+
+        if (needsCleaning)
+        {
+            WritebackDaemon.requestCleaning();
+        }
+
+        int victim = (oldestClean != -1) ? oldestClean : oldest;
+        if (victim == -1)
+        {
+            //every page was referenced since the last sweep, fall back to the hand
+            victim = hand;
+            hand = (hand + 1) % numFrames;
+        }
+        return victim;
+    }
+
+    @Override
+    void pageMapped(int ppn, MemoryPage page)
+    {
+        lastUse[ppn] = Machine.timer().getTime();
+    }
+
+    public String getAlgorithmName()
+    {
+        return algorithmName;
+    }
+}
@@ -0,0 +1,320 @@
+package nachos.vm;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import nachos.machine.Config;
+import nachos.machine.Machine;
+import nachos.machine.TranslationEntry;
+import nachos.threads.KThread;
+import nachos.threads.Semaphore;
+import nachos.threads.ThreadedKernel;
+import nachos.userprog.UThread;
+
+/**
+ * A <tt>WorkingSet</tt>
+ *
+ * estimates the working set of one process and, together with the other
+ * processes' estimates, keeps the system from thrashing.
+ *
+ * On every timer interrupt the running process's TLB is sampled: a page whose
+ * entry is valid and used was referenced in the last interval. A faulting
+ * page is referenced at the time of the fault. The working set is the pages
+ * referenced in the last <tt>VMKernel.workingSetWindow</tt> ticks.
+ *
+ * Page-fault-frequency admission control (<tt>VMKernel.admissionControl</tt>):
+ * when a process faults again within <tt>VMKernel.pffInterval</tt> ticks and
+ * the working sets of all running processes add up to more than physical
+ * memory, the newest running process is suspended. Its pages are marked
+ * unused so the replacement policy takes them first, and it blocks at its
+ * next TLB miss. Suspended processes are resumed, oldest first, from the
+ * timer interrupt once their working set fits again or nothing else is
+ * running.
+ *
+ * Resident-set size, working set, fault count and rate, and suspensions are
+ * kept per process in <tt>ProcessStats</tt>.
+ */
+public class WorkingSet
+{
+    private static final long NEVER = -1L;
+
+    private static boolean admissionControl;
+    private static long window;
+    private static long pffInterval;
+    private static HashMap<Integer, WorkingSet> processes = new HashMap<Integer, WorkingSet>();
+    private static LinkedList<WorkingSet> suspendedProcesses = new LinkedList<WorkingSet>();
+
+    private final int pid;
+    private long[] lastReference;           //tick of the last known reference, by vpn
+    private final long startTime;
+    private final ProcessStats stats;
+    private long lastFaultTime;
+    private boolean suspended;
+    private boolean waiting;
+    private int suspendedSize;              //working set when suspended, frozen until resumed
+    private final Semaphore resume;
+
+    public WorkingSet(int pid, int numPages)
+    {
+        this.pid = pid;
+        lastReference = new long[numPages];
+        Arrays.fill(lastReference, NEVER);
+        startTime = Machine.timer().getTime();
+        lastFaultTime = startTime;
+        stats = ProcessStats.get(pid);
+        suspended = false;
+        waiting = false;
+        resume = new Semaphore(0);
+
+        processes.put(pid, this);
+    }
+
+    /**
+     * Read the config and start sampling on timer interrupts.
+     */
+    public static void initialize()
+    {
+        admissionControl = Config.getBoolean("VMKernel.admissionControl", true);
+        window = Config.getInteger("VMKernel.workingSetWindow", 50000);
+        pffInterval = Config.getInteger("VMKernel.pffInterval", 2000);
+
+        //sample ahead of the alarm, which may switch to another thread
+        Machine.timer().setInterruptHandler(new Runnable()
+        {
+            public void run()
+            {
+                timerInterrupt();
+                ThreadedKernel.alarm.timerInterrupt();
+            }
+        });
+    }
+
+    /**
+     * Make room for an address space grown to <i>numPages</i> pages.
+     */
+    public void grow(int numPages)
+    {
+        int oldPages = lastReference.length;
+        if (numPages > oldPages)
+        {
+            lastReference = Arrays.copyOf(lastReference, numPages);
+            Arrays.fill(lastReference, oldPages, numPages, NEVER);
+        }
+    }
+
+    /**
+     * Called when the owning process exits.
+     */
+    public void exited()
+    {
+        boolean intStatus = Machine.interrupt().disable();
+
+        long now = Machine.timer().getTime();
+        stats.workingSetSize = size(now);
+        stats.faultRate = stats.numPageFaults * 1000.0 / Math.max(1, now - startTime);
+        processes.remove(pid);
+        suspendedProcesses.remove(this);
+        if (admissionControl)
+        {
+            resumeWhileRoom(now);
+        }
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Block while this process is suspended. Called at the start of each TLB
+     * miss, with no locks held.
+     */
+    public void waitIfSuspended()
+    {
+        //checked again with interrupts off; this keeps the common case from costing a kernel tick
+        if (!suspended)
+        {
+            return;
+        }
+
+        boolean intStatus = Machine.interrupt().disable();
+        if (suspended)
+        {
+            waiting = true;
+            resume.P();
+        }
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Record a page fault on <i>vpn</i> and run the admission check. The
+     * caller holds the page fault lock.
+     */
+    public void pageFault(int vpn)
+    {
+        boolean intStatus = Machine.interrupt().disable();
+
+        long now = Machine.timer().getTime();
+        stats.pageFault(now - startTime);
+        if (vpn < lastReference.length)
+        {
+            lastReference[vpn] = now;
+        }
+        stats.workingSetSize = size(now);
+
+        long interval = now - lastFaultTime;
+        lastFaultTime = now;
+        if (admissionControl && interval < pffInterval)
+        {
+            admit(now);
+        }
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    public static void pageMapped(int pid)
+    {
+        ProcessStats.get(pid).pageMapped();
+    }
+
+    public static void pageUnmapped(int pid)
+    {
+        ProcessStats.get(pid).residentPages--;
+    }
+
+    //number of pages referenced in the last window ticks
+    private int size(long now)
+    {
+        int count = 0;
+        for (int vpn = 0; vpn < lastReference.length; vpn++)
+        {
+            if (lastReference[vpn] != NEVER && now - lastReference[vpn] <= window)
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void timerInterrupt()
+    {
+        long now = Machine.timer().getTime();
+
+        KThread current = KThread.currentThread();
+        if (current instanceof UThread)
+        {
+            WorkingSet ws = processes.get(((UThread) current).process.getProcessID());
+            if (ws != null)
+            {
+                for (int i = 0; i < Machine.processor().getTLBSize(); i++)
+                {
+                    TranslationEntry entry = Machine.processor().readTLBEntry(i);
+                    if (!entry.valid || !entry.used)
+                    {
+                        continue;
+                    }
+                    if (entry.vpn < ws.lastReference.length)
+                    {
+                        ws.lastReference[entry.vpn] = now;
+                    }
+
+                    //hand the reference to the core map and start the next interval clear
+                    MemoryPage page = VMKernel.physicalDiskMap[entry.ppn];
+                    if (page != null)
+                    {
+                        page.entry.used = true;
+                    }
+                    entry.used = false;
+                    Machine.processor().writeTLBEntry(i, entry);
+                }
+            }
+        }
+
+        if (admissionControl && !suspendedProcesses.isEmpty())
+        {
+            resumeWhileRoom(now);
+        }
+    }
+
+    //total working set of the processes that are not suspended, and how many there are
+    private static int runningDemand(long now, int[] numRunning)
+    {
+        int demand = 0;
+        numRunning[0] = 0;
+        for (Iterator<WorkingSet> i = processes.values().iterator(); i.hasNext();)
+        {
+            WorkingSet ws = i.next();
+            if (!ws.suspended)
+            {
+                demand += ws.size(now);
+                numRunning[0]++;
+            }
+        }
+        return demand;
+    }
+
+    private static void admit(long now)
+    {
+        int[] numRunning = new int[1];
+        int demand = runningDemand(now, numRunning);
+        if (demand <= Machine.processor().getNumPhysPages() || numRunning[0] <= 1)
+        {
+            return;
+        }
+
+        //the newest process gives way
+        WorkingSet victim = null;
+        for (Iterator<WorkingSet> i = processes.values().iterator(); i.hasNext();)
+        {
+            WorkingSet ws = i.next();
+            if (!ws.suspended && (victim == null || ws.pid > victim.pid))
+            {
+                victim = ws;
+            }
+        }
+        victim.suspend(now);
+    }
+
+    private void suspend(long now)
+    {
+        VMKernel.printDebug("Suspending process " + pid + " to stop thrashing");
+        suspendedSize = size(now);
+        suspended = true;
+        suspendedProcesses.add(this);
+        stats.numSuspensions++;
+
+        //let the replacement policy reclaim its frames first
+        for (int ppn = 0; ppn < VMKernel.physicalDiskMap.length; ppn++)
+        {
+            MemoryPage page = VMKernel.physicalDiskMap[ppn];
+            if (page != null && page.getOwningProcessId() == pid)
+            {
+                page.entry.used = false;
+            }
+        }
+    }
+
+    private static void resumeWhileRoom(long now)
+    {
+        int[] numRunning = new int[1];
+        while (!suspendedProcesses.isEmpty())
+        {
+            WorkingSet ws = suspendedProcesses.getFirst();
+            int demand = runningDemand(now, numRunning);
+            //a working set larger than memory still gets to run once everyone else is idle
+            int needed = Math.min(ws.suspendedSize, Machine.processor().getNumPhysPages());
+            if (numRunning[0] > 0 && demand + needed > Machine.processor().getNumPhysPages())
+            {
+                return;
+            }
+
+            VMKernel.printDebug("Resuming process " + ws.pid);
+            suspendedProcesses.removeFirst();
+            ws.suspended = false;
+            if (ws.waiting)
+            {
+                ws.waiting = false;
+                ws.resume.V();
+            }
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package nachos.vm;
+
+import nachos.machine.Config;
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.machine.Processor;
+import nachos.threads.Condition;
+import nachos.threads.KThread;
+import nachos.threads.Lock;
+import nachos.threads.Semaphore;
+
+/**
+ * A <tt>WritebackDaemon</tt>
+ *
+ * is a kernel thread that cleans dirty frames in the background so that the
+ * page fault path usually finds a clean victim and does not have to write it
+ * to the swap file while holding the page fault lock.
+ *
+ * It is woken after every fault that had to evict a page. Each pass picks up
+ * to <tt>VMKernel.writebackBatch</tt> dirty frames whose used bit is clear
+ * (the ones the clock reaches next), snapshots them under the page fault
+ * lock and marks them clean, then writes the snapshot with the lock released.
+ * Frames without a swap slot get a contiguous run, and frames with adjacent
+ * swap slots go out in a single write.
+ *
+ * A swap frame stays "in flight" until its write lands; anyone who wants to
+ * read or overwrite it first waits in <tt>waitForFrame()</tt>.
+ */
+public class WritebackDaemon
+{
+    private static boolean enabled;
+    private static int batchSize;
+    private static Lock pageFaultLock;
+    private static Condition writebackDone;
+    private static Semaphore wakeUp;
+    private static boolean wakeUpPending;
+
+    private static MemoryPage[] batch;
+    private static int[] batchFrames;
+    private static boolean[] batchFailed;
+    private static byte[] staging;
+
+    private static int numPasses = 0;
+    private static int numPagesCleaned = 0;
+    private static int numWrites = 0;
+    private static int numSyncWrites = 0;
+    private static int numAvoidedSyncWrites = 0;
+    private static int numWriteErrors = 0;
+
+    private WritebackDaemon()
+    {
+
+    }
+
+    /**
+     * Start the daemon.
+     *
+     * @param lock the lock that serializes all paging activity.
+     */
+    public static void initialize(Lock lock)
+    {
+        enabled = Config.getBoolean("VMKernel.writeback", true);
+        batchSize = Math.max(1, Config.getInteger("VMKernel.writebackBatch", 8));
+        pageFaultLock = lock;
+        writebackDone = new Condition(lock);
+        wakeUp = new Semaphore(0);
+        wakeUpPending = false;
+
+        if (!enabled)
+        {
+            return;
+        }
+
+        batch = new MemoryPage[batchSize];
+        batchFrames = new int[batchSize];
+        batchFailed = new boolean[batchSize];
+        staging = new byte[batchSize * Processor.pageSize];
+
+        new KThread(new Runnable()
+        {
+            public void run()
+            {
+                daemonLoop();
+            }
+        }).setName("writeback").fork();
+    }
+
+    /**
+     * Called by the fault path after it evicts a page. The caller must hold
+     * the page fault lock.
+     *
+     * @param victim the page that was evicted.
+     * @param wroteSynchronously <tt>true</tt> if the victim had to be written
+     * before its frame could be reused.
+     */
+    public static void pageEvicted(MemoryPage victim, boolean wroteSynchronously)
+    {
+        if (wroteSynchronously)
+        {
+            numSyncWrites++;
+        }
+        else if (victim.cleanedByWriteback)
+        {
+            numAvoidedSyncWrites++;
+        }
+
+        requestCleaning();
+    }
+
+    /**
+     * Ask for a cleaning pass without waiting for it. The caller must hold the
+     * page fault lock.
+     */
+    public static void requestCleaning()
+    {
+        if (enabled && !wakeUpPending)
+        {
+            wakeUpPending = true;
+            wakeUp.V();
+        }
+    }
+
+    /**
+     * Wait until no background write to <i>frameNumber</i> is outstanding.
+     * The caller must hold the page fault lock.
+     *
+     * @return <tt>true</tt> if there was a write to wait for, in which case
+     * the lock was released in between.
+     */
+    public static boolean waitForFrame(int frameNumber)
+    {
+        Lib.assertTrue(pageFaultLock.isHeldByCurrentThread());
+        boolean waited = false;
+        while (SwapPageManager.isWriteInFlight(frameNumber))
+        {
+            writebackDone.sleep();
+            waited = true;
+        }
+        return waited;
+    }
+
+    public static String getStatistics()
+    {
+        return String.format("Writeback: %d passes cleaned %d pages in %d writes, sync writes %d, faults that avoided a sync write %d, write errors %d",
+                             numPasses, numPagesCleaned, numWrites, numSyncWrites, numAvoidedSyncWrites, numWriteErrors);
+    }
+
+    private static void daemonLoop()
+    {
+        while (true)
+        {
+            wakeUp.P();
+
+            pageFaultLock.acquire();
+            wakeUpPending = false;
+            int count = collectBatch();
+            pageFaultLock.release();
+
+            if (count == 0)
+            {
+                continue;
+            }
+
+            //the snapshot is consistent, so the slow part runs without the lock
+            writeBatch(count);
+
+            pageFaultLock.acquire();
+            for (int i = 0; i < count; i++)
+            {
+                SwapPageManager.setWriteInFlight(batchFrames[i], false);
+                if (batchFailed[i])
+                {
+                    redirty(batch[i]);
+                }
+                batch[i] = null;
+            }
+            writebackDone.wakeAll();
+            pageFaultLock.release();
+        }
+    }
+
+    //pick dirty unused frames, give them swap slots and copy them to staging sorted by slot
+    private static int collectBatch()
+    {
+        int count = 0;
+        MemoryPage[] coreMap = VMKernel.physicalDiskMap;
+        for (int ppn = 0; ppn < coreMap.length && count < batchSize; ppn++)
+        {
+            MemoryPage page = coreMap[ppn];
+            //mapped pages belong to their files, not the swap file
+            if (page != null && page.entry.valid && page.entry.dirty && !page.entry.used
+                && !(page instanceof MappedMemoryPage))
+            {
+                batch[count++] = page;
+            }
+        }
+        if (count == 0)
+        {
+            return 0;
+        }
+
+        SwapPageManager.assignSwapFrames(batch, count, batchFrames);
+        sortBySwapFrame(count);
+
+        byte[] memory = Machine.processor().getMemory();
+        for (int i = 0; i < count; i++)
+        {
+            MemoryPage page = batch[i];
+            System.arraycopy(memory, Processor.makeAddress(page.entry.ppn, 0),
+                             staging, i * Processor.pageSize, Processor.pageSize);
+            page.entry.dirty = false;
+            page.cleanedByWriteback = true;
+            SwapPageManager.setWriteInFlight(batchFrames[i], true);
+        }
+
+        numPasses++;
+        numPagesCleaned += count;
+        return count;
+    }
+
+    //one write per run of consecutive swap frames; a failed run is marked in batchFailed
+    private static void writeBatch(int count)
+    {
+        int runStart = 0;
+        for (int i = 1; i <= count; i++)
+        {
+            if (i < count && batchFrames[i] == batchFrames[i - 1] + 1)
+            {
+                continue;
+            }
+
+            boolean success = SwapPageManager.writeSwapFrames(batchFrames[runStart], staging,
+                                                               runStart * Processor.pageSize, i - runStart);
+            for (int j = runStart; j < i; j++)
+            {
+                batchFailed[j] = !success;
+            }
+            if (success)
+            {
+                numWrites++;
+            }
+            else
+            {
+                numWriteErrors++;
+                VMKernel.printDebug("writeback failed for swap frames " + batchFrames[runStart] + " to " + batchFrames[i - 1]);
+            }
+            runStart = i;
+        }
+    }
+
+    //the swap copy is bad, so a page still in memory has to be written by the fault path again
+    private static void redirty(MemoryPage page)
+    {
+        if (page.entry.valid && VMKernel.physicalDiskMap[page.entry.ppn] == page)
+        {
+            page.entry.dirty = true;
+            page.cleanedByWriteback = false;
+        }
+    }
+
+    //insertion sort, the batch is small
+    private static void sortBySwapFrame(int count)
+    {
+        for (int i = 1; i < count; i++)
+        {
+            MemoryPage page = batch[i];
+            int frame = batchFrames[i];
+            int j = i - 1;
+            while (j >= 0 && batchFrames[j] > frame)
+            {
+                batch[j + 1] = batch[j];
+                batchFrames[j + 1] = batchFrames[j];
+                j--;
+            }
+            batch[j + 1] = page;
+            batchFrames[j + 1] = frame;
+        }
+    }
+}